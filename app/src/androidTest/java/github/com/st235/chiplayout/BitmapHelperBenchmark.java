@@ -0,0 +1,73 @@
+package github.com.st235.chiplayout;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.NonNull;
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Measures on-device decoding of avatars with {@link BitmapHelper#decodeCenterCropBitmap(Resources, int, int)}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BitmapHelperBenchmark {
+
+    private static final int SIZE = 128;
+
+    @Rule
+    public final BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private Resources resources;
+
+    @Before
+    public void setUp() {
+        resources = ApplicationProvider.getApplicationContext().getResources();
+        BitmapPool.getInstance().clear();
+    }
+
+    @After
+    public void tearDown() {
+        BitmapPool.getInstance().clear();
+    }
+
+    @Test
+    public void decodeCenterCropBitmap_png() {
+        decodeRepeated(R.drawable.avatar);
+    }
+
+    @Test
+    public void decodeCenterCropBitmap_jpeg() {
+        decodeRepeated(R.drawable.cat);
+    }
+
+    /**
+     * Decodes resource again and again returning every bitmap to {@link BitmapPool},
+     * so measured decodes reuse memory as avatars in a scrolled list do.
+     */
+    private void decodeRepeated(@DrawableRes int resId) {
+        final BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            final Bitmap bitmap = BitmapHelper.decodeCenterCropBitmap(resources, resId, SIZE);
+            assertNotNull(bitmap);
+            recycle(bitmap);
+        }
+    }
+
+    private static void recycle(@NonNull Bitmap bitmap) {
+        if (!BitmapPool.getInstance().put(bitmap)) {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package github.com.st235.chiplayout;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.view.ViewGroup;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.rules.ActivityScenarioRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures on-device drawing of a laid out {@link CircularImageView} into a software canvas.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CircularImageViewBenchmark {
+
+    private static final int SIZE = 128;
+
+    @Rule
+    public final BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Rule
+    public final ActivityScenarioRule<MainActivity> activityRule = new ActivityScenarioRule<>(MainActivity.class);
+
+    private CircularImageView view;
+    private Canvas canvas;
+
+    @Before
+    public void setUp() {
+        canvas = new Canvas(Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888));
+
+        activityRule.getScenario().onActivity(new ActivityScenario.ActivityAction<MainActivity>() {
+            @Override
+            public void perform(MainActivity activity) {
+                // the view finds its image in memory cache once laid out, so no decoding is measured
+                final BitmapMemoryCache cache = BitmapMemoryCache.getInstance();
+                cache.release(cache.putAndRetain(ImageLoader.cacheKey(activity.getResources(), activity.getTheme(),
+                        R.drawable.avatar, SIZE), Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888)));
+
+                view = new CircularImageView(activity);
+                view.setExtraText("AB");
+                view.setDrawableResource(R.drawable.avatar);
+                activity.setContentView(view, new ViewGroup.LayoutParams(SIZE, SIZE));
+            }
+        });
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    }
+
+    @After
+    public void tearDown() {
+        BitmapMemoryCache.getInstance().onLowMemory();
+    }
+
+    @Test
+    public void onDraw_withImage() {
+        drawRepeated(false);
+    }
+
+    @Test
+    public void onDraw_withComposite() {
+        drawRepeated(true);
+    }
+
+    /**
+     * Draws view on the main thread until benchmark has collected enough samples
+     */
+    private void drawRepeated(final boolean isCompositeCacheEnabled) {
+        activityRule.getScenario().onActivity(new ActivityScenario.ActivityAction<MainActivity>() {
+            @Override
+            public void perform(MainActivity activity) {
+                view.setCompositeCacheEnabled(isCompositeCacheEnabled);
+
+                final BenchmarkState state = benchmarkRule.getState();
+                while (state.keepRunning()) {
+                    view.draw(canvas);
+                }
+            }
+        });
+    }
+}
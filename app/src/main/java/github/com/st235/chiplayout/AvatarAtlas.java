@@ -0,0 +1,441 @@
+package github.com.st235.chiplayout;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.util.Log;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Px;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs small square images into a few shared large bitmaps, called pages.
+ *
+ * Many views showing small images then share a few textures instead of uploading
+ * a texture per image, and the heap holds a few large allocations instead of many small ones.
+ * Images of the same size are packed into shelves of that height, every image is surrounded
+ * by a transparent padding, so filtering never samples its neighbours.
+ *
+ * Slots are reference counted by their holders and freed once the last one releases them.
+ * Freed slots are reused by the following images of the same size. Pages which become mostly empty
+ * are compacted: their slots are moved to other pages and holders are notified, so they could
+ * draw from the new place. Compaction is only tried when free area of other pages could take
+ * all the slots and it is not retried until that area grows. Empty pages are dropped.
+ *
+ * Adding an image modifies its page, so the whole page is uploaded again with the next frame.
+ * Atlas suits screens which show the same images for a while, for example member lists.
+ */
+@MainThread
+final class AvatarAtlas {
+
+    private static final String TAG = "AvatarAtlas";
+
+    /**
+     * Notified about slot changes.
+     */
+    interface Listener {
+
+        /**
+         * Called when image has been moved to another page or place
+         * @param slot moved slot, its page and bounds are already updated
+         */
+        void onSlotMoved(@NonNull Slot slot);
+    }
+
+    @Px
+    private static final int PAGE_SIZE = 1024;
+
+    @Px
+    private static final int PADDING = 1;
+
+    /**
+     * Page is compacted once less than 1/4 of its slots are in use.
+     */
+    private static final int COMPACTION_OCCUPANCY_FRACTION = 4;
+
+    @Nullable
+    private static AvatarAtlas instance;
+
+    private final List<Page> pages = new ArrayList<>();
+    private final Map<BitmapMemoryCache.Key, Slot> slots = new HashMap<>();
+
+    private final Paint copyPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect sourceRect = new Rect();
+    private final Rect targetRect = new Rect();
+
+    private AvatarAtlas() {
+        copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * @return process-wide atlas, should be used only from the main thread
+     */
+    @NonNull
+    static AvatarAtlas getInstance() {
+        if (instance == null) {
+            instance = new AvatarAtlas();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns slot of the already packed image and retains it on behalf of the listener
+     * @return slot or null if image is not in the atlas
+     */
+    @Nullable
+    Slot acquire(@NonNull BitmapMemoryCache.Key key, @NonNull Listener listener) {
+        final Slot slot = slots.get(key);
+        if (slot != null) {
+            slot.holders.add(listener);
+        }
+        return slot;
+    }
+
+    /**
+     * Copies square image into the atlas and retains its slot on behalf of the listener.
+     * If the image is already in the atlas its slot is reused.
+     * @param bitmap square image, is not retained by atlas
+     * @return slot or null if image is too large for the atlas or there is no memory for a new page
+     */
+    @Nullable
+    Slot put(@NonNull BitmapMemoryCache.Key key, @NonNull Bitmap bitmap, @NonNull Listener listener) {
+        final Slot existing = acquire(key, listener);
+        if (existing != null) {
+            return existing;
+        }
+
+        final int size = bitmap.getWidth();
+        if (bitmap.getHeight() != size || size + PADDING * 2 > PAGE_SIZE) {
+            return null;
+        }
+
+        final Slot slot = new Slot(key, size);
+        if (!allocate(slot, null)) {
+            return null;
+        }
+
+        sourceRect.set(0, 0, size, size);
+        copy(bitmap, slot);
+        slot.holders.add(listener);
+        slots.put(key, slot);
+        return slot;
+    }
+
+    /**
+     * Releases slot on behalf of the listener, slot is freed once it has no holders
+     */
+    void release(@NonNull Slot slot, @NonNull Listener listener) {
+        if (!slot.holders.remove(listener) || !slot.holders.isEmpty()) {
+            return;
+        }
+
+        slots.remove(slot.key);
+        final Page page = slot.page;
+        page.free(slot);
+
+        if (page.usedCount == 0) {
+            pages.remove(page);
+        } else if (page.usedCount * COMPACTION_OCCUPANCY_FRACTION < page.capacity()) {
+            compact(page);
+        }
+    }
+
+    /**
+     * Moves slots of the page to other pages, page is dropped if all of them fit.
+     * Nothing is moved if other pages do not have enough free area for the slots
+     * or have not got more of it since the previous attempt failed.
+     */
+    private void compact(@NonNull Page page) {
+        int freeArea = 0;
+        for (Page other : pages) {
+            if (other != page) {
+                freeArea += other.freeArea();
+            }
+        }
+
+        if (freeArea < page.usedArea || freeArea <= page.failedCompactionFreeArea) {
+            return;
+        }
+
+        final List<Slot> moved = new ArrayList<>(page.usedCount);
+
+        for (Slot slot : new ArrayList<>(page.slots)) {
+            final Page previousPage = slot.page;
+            final int previousLeft = slot.left;
+            final int previousTop = slot.top;
+            if (!allocate(slot, page)) {
+                // free area of other pages is fragmented, the rest stays until it grows
+                page.failedCompactionFreeArea = freeArea;
+                break;
+            }
+
+            sourceRect.set(previousLeft, previousTop, previousLeft + slot.size, previousTop + slot.size);
+            copy(previousPage.bitmap, slot);
+            previousPage.free(slot, previousLeft, previousTop);
+            moved.add(slot);
+            freeArea -= (slot.size + PADDING * 2) * (slot.size + PADDING * 2);
+        }
+
+        if (page.usedCount == 0) {
+            pages.remove(page);
+        }
+
+        for (Slot slot : moved) {
+            for (Listener holder : new ArrayList<>(slot.holders)) {
+                holder.onSlotMoved(slot);
+            }
+        }
+    }
+
+    /**
+     * Finds place for the slot and assigns it, a new page is created if needed
+     * @param excluded page which should not be used or null
+     * @return false if there is no place and no memory for a new page
+     */
+    private boolean allocate(@NonNull Slot slot, @Nullable Page excluded) {
+        for (Page page : pages) {
+            if (page != excluded && page.allocate(slot)) {
+                return true;
+            }
+        }
+
+        if (excluded != null) {
+            // compaction never grows the atlas
+            return false;
+        }
+
+        final Page page;
+        try {
+            page = new Page(Bitmap.createBitmap(PAGE_SIZE, PAGE_SIZE, Bitmap.Config.ARGB_8888));
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemory while creating atlas page!");
+            return false;
+        }
+
+        pages.add(page);
+        return page.allocate(slot);
+    }
+
+    /**
+     * Copies {@link #sourceRect} of the source into the slot, replacing whatever was there before
+     */
+    private void copy(@NonNull Bitmap source, @NonNull Slot slot) {
+        targetRect.set(slot.left, slot.top, slot.left + slot.size, slot.top + slot.size);
+        new Canvas(slot.page.bitmap).drawBitmap(source, sourceRect, targetRect, copyPaint);
+    }
+
+    /**
+     * Place of a single image in the atlas.
+     */
+    static final class Slot {
+
+        @NonNull
+        private final BitmapMemoryCache.Key key;
+        @Px
+        private final int size;
+        private final List<Listener> holders = new ArrayList<>(1);
+
+        private Page page;
+        private int left;
+        private int top;
+
+        private Slot(@NonNull BitmapMemoryCache.Key key, @Px int size) {
+            this.key = key;
+            this.size = size;
+        }
+
+        /**
+         * @return shared page bitmap holding the image, should never be modified
+         */
+        @NonNull
+        Bitmap getPage() {
+            return page.bitmap;
+        }
+
+        /**
+         * @return left of the image within the page
+         */
+        @Px
+        int getLeft() {
+            return left;
+        }
+
+        /**
+         * @return top of the image within the page
+         */
+        @Px
+        int getTop() {
+            return top;
+        }
+
+        /**
+         * @return side of the square image
+         */
+        @Px
+        int getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Single atlas bitmap split into shelves.
+     */
+    private static final class Page {
+
+        @NonNull
+        private final Bitmap bitmap;
+        private final List<Shelf> shelves = new ArrayList<>();
+        private final List<Slot> slots = new ArrayList<>();
+
+        private int nextShelfTop;
+        private int usedCount;
+        private int capacity;
+
+        /**
+         * Area of the used cells including their padding.
+         */
+        private int usedArea;
+
+        /**
+         * Free area of other pages left after compaction of this one has failed the last time,
+         * compaction is not retried until they have more.
+         */
+        private int failedCompactionFreeArea;
+
+        Page(@NonNull Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        /**
+         * Places slot into a shelf of its size, opens a new shelf if needed
+         * @return false if page is full for this size
+         */
+        boolean allocate(@NonNull Slot slot) {
+            final int cell = slot.size + PADDING * 2;
+
+            Shelf target = null;
+            for (Shelf shelf : shelves) {
+                if (shelf.cell == cell && shelf.hasSpace()) {
+                    target = shelf;
+                    break;
+                }
+            }
+
+            if (target == null) {
+                if (nextShelfTop + cell > PAGE_SIZE) {
+                    return false;
+                }
+
+                target = new Shelf(nextShelfTop, cell);
+                shelves.add(target);
+                nextShelfTop += cell;
+                capacity += PAGE_SIZE / cell;
+            }
+
+            final int cellLeft = target.allocate();
+            slot.page = this;
+            slot.left = cellLeft + PADDING;
+            slot.top = target.top + PADDING;
+            slots.add(slot);
+            usedCount++;
+            usedArea += cell * cell;
+            return true;
+        }
+
+        void free(@NonNull Slot slot) {
+            free(slot, slot.left, slot.top);
+        }
+
+        /**
+         * Frees the cell at the given place, slot could already be allocated on another page
+         */
+        void free(@NonNull Slot slot, int left, int top) {
+            final int cell = slot.size + PADDING * 2;
+            for (Shelf shelf : shelves) {
+                if (shelf.top == top - PADDING && shelf.cell == cell) {
+                    shelf.free(left - PADDING);
+                    slots.remove(slot);
+                    usedCount--;
+                    usedArea -= cell * cell;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return area of the free cells of the opened shelves and of the space below them
+         */
+        int freeArea() {
+            int area = (PAGE_SIZE - nextShelfTop) * PAGE_SIZE;
+            for (Shelf shelf : shelves) {
+                area += shelf.freeCount() * shelf.cell * shelf.cell;
+            }
+            return area;
+        }
+
+        /**
+         * @return amount of slots which could fit into the opened shelves
+         */
+        int capacity() {
+            return capacity;
+        }
+    }
+
+    /**
+     * Row of cells of the same size.
+     */
+    private static final class Shelf {
+
+        private final int top;
+        private final int cell;
+        private final ArrayDeque<Integer> freeCells = new ArrayDeque<>();
+
+        private int nextCellLeft;
+
+        Shelf(int top, int cell) {
+            this.top = top;
+            this.cell = cell;
+        }
+
+        boolean hasSpace() {
+            return !freeCells.isEmpty() || nextCellLeft + cell <= PAGE_SIZE;
+        }
+
+        /**
+         * @return amount of cells which could still be allocated
+         */
+        int freeCount() {
+            return freeCells.size() + (PAGE_SIZE - nextCellLeft) / cell;
+        }
+
+        /**
+         * @return left of the allocated cell, freed cells are reused first
+         */
+        int allocate() {
+            final Integer freeCell = freeCells.poll();
+            if (freeCell != null) {
+                return freeCell;
+            }
+
+            final int left = nextCellLeft;
+            nextCellLeft += cell;
+            return left;
+        }
+
+        void free(int cellLeft) {
+            freeCells.push(cellLeft);
+        }
+    }
+}
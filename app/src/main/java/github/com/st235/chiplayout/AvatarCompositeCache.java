@@ -0,0 +1,242 @@
+package github.com.st235.chiplayout;
+
+import android.graphics.Bitmap;
+import android.graphics.Typeface;
+import android.util.LruCache;
+
+import androidx.annotation.ColorInt;
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Px;
+import androidx.core.graphics.BitmapCompat;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of fully composited avatars, ie masked images with their text on top.
+ *
+ * Views with equal inputs, for example placeholders showing the same monogram,
+ * share a single composite. Composites are reference counted the same way as
+ * {@link BitmapMemoryCache} bitmaps: clients release composites they do not draw anymore,
+ * and composites which are both evicted and released go to {@link BitmapPool}.
+ */
+final class AvatarCompositeCache {
+
+    private static final int DEFAULT_MEMORY_FRACTION = 32;
+
+    @Nullable
+    private static volatile AvatarCompositeCache instance;
+
+    @NonNull
+    private final LruCache<Key, Bitmap> cache;
+
+    /**
+     * Amount of clients drawing composite, guarded by this.
+     */
+    private final Map<Bitmap, Integer> references = new IdentityHashMap<>();
+
+    /**
+     * Composites which are currently stored in {@link #cache}, guarded by this.
+     */
+    private final Map<Bitmap, Key> cachedBitmaps = new IdentityHashMap<>();
+
+    private AvatarCompositeCache(@IntRange(from = 1) int maxSizeBytes) {
+        cache = new LruCache<Key, Bitmap>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(@NonNull Key key, @NonNull Bitmap value) {
+                return BitmapCompat.getAllocationByteCount(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted,
+                                        @NonNull Key key,
+                                        @NonNull Bitmap oldValue,
+                                        @Nullable Bitmap newValue) {
+                if (oldValue != newValue) {
+                    onBitmapRemoved(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return process-wide cache instance, which takes up to 1/32 of the heap
+     */
+    @NonNull
+    static AvatarCompositeCache getInstance() {
+        AvatarCompositeCache cache = instance;
+        if (cache == null) {
+            synchronized (AvatarCompositeCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    final long maxMemory = Runtime.getRuntime().maxMemory();
+                    cache = new AvatarCompositeCache(
+                            (int) Math.min(Integer.MAX_VALUE, maxMemory / DEFAULT_MEMORY_FRACTION));
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns composite and retains it on behalf of the caller
+     * @return composite or null if there is no one for the key
+     */
+    @Nullable
+    synchronized Bitmap acquire(@NonNull Key key) {
+        final Bitmap bitmap = cache.get(key);
+        if (bitmap != null) {
+            retain(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Puts composite into cache and retains it on behalf of the caller,
+     * composite should not be modified afterwards.
+     */
+    synchronized void put(@NonNull Key key, @NonNull Bitmap bitmap) {
+        retain(bitmap);
+        cachedBitmaps.put(bitmap, key);
+        cache.put(key, bitmap);
+    }
+
+    private void retain(@NonNull Bitmap bitmap) {
+        final Integer count = references.get(bitmap);
+        references.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Marks composite as not drawn by the caller anymore.
+     * If composite is neither drawn nor cached it is moved to {@link BitmapPool}.
+     */
+    void release(@NonNull Bitmap bitmap) {
+        synchronized (this) {
+            final Integer count = references.get(bitmap);
+            if (count == null) {
+                return;
+            }
+
+            if (count > 1) {
+                references.put(bitmap, count - 1);
+                return;
+            }
+
+            references.remove(bitmap);
+            if (cachedBitmaps.containsKey(bitmap)) {
+                return;
+            }
+        }
+
+        BitmapPool.getInstance().put(bitmap);
+    }
+
+    /**
+     * Moves evicted or replaced composite to pool unless someone still draws it
+     */
+    private void onBitmapRemoved(@NonNull Bitmap bitmap) {
+        synchronized (this) {
+            cachedBitmaps.remove(bitmap);
+            if (references.containsKey(bitmap)) {
+                return;
+            }
+        }
+
+        BitmapPool.getInstance().put(bitmap);
+    }
+
+    /**
+     * Evicts the least recently used composites until cache fits the given size
+     */
+    void trimToSize(@IntRange(from = 0) int size) {
+        cache.trimToSize(size);
+    }
+
+    /**
+     * @return max size of all cached composites in bytes
+     */
+    int getMaxSizeBytes() {
+        return cache.maxSize();
+    }
+
+    /**
+     * Identifies composite by everything which affects its pixels.
+     */
+    static final class Key {
+
+        @Nullable
+        private final BitmapMemoryCache.Key image;
+        private final int width;
+        private final int height;
+        private final float radius;
+        @NonNull
+        private final String text;
+        @ColorInt
+        private final int textColor;
+        private final float textSize;
+        @Nullable
+        private final Typeface typeface;
+
+        /**
+         * Creates new key
+         * @param image key of the masked image, it covers its drawable, size, night mode and theme,
+         *              null if there is no image
+         * @param width composite width
+         * @param height composite height
+         * @param radius mask radius, mask is centered
+         * @param text text drawn at the center
+         * @param textColor color of the text
+         * @param textSize size of the text
+         * @param typeface typeface of the text
+         */
+        Key(@Nullable BitmapMemoryCache.Key image,
+            @Px int width,
+            @Px int height,
+            @Px float radius,
+            @NonNull String text,
+            @ColorInt int textColor,
+            @Px float textSize,
+            @Nullable Typeface typeface) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+            this.radius = radius;
+            this.text = text;
+            this.textColor = textColor;
+            this.textSize = textSize;
+            this.typeface = typeface;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+            return (image == null ? key.image == null : image.equals(key.image))
+                    && width == key.width
+                    && height == key.height
+                    && Float.compare(key.radius, radius) == 0
+                    && textColor == key.textColor
+                    && Float.compare(key.textSize, textSize) == 0
+                    && text.equals(key.text)
+                    && (typeface == null ? key.typeface == null : typeface.equals(key.typeface));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = image != null ? image.hashCode() : 0;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + Float.floatToIntBits(radius);
+            result = 31 * result + text.hashCode();
+            result = 31 * result + textColor;
+            result = 31 * result + Float.floatToIntBits(textSize);
+            result = 31 * result + (typeface != null ? typeface.hashCode() : 0);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,579 @@
+package github.com.st235.chiplayout;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Process-wide disk cache of decoded and transformed bitmaps, bounded by size in bytes.
+ *
+ * Bitmaps are stored as raw pixels, so loading them is a single read and copy
+ * without any decoding. Every file starts with a header describing the pixels and their checksum,
+ * files which do not match their header are treated as missing and deleted.
+ * Files are written to a temporary file first and renamed afterwards,
+ * so readers never see partially written files.
+ *
+ * Least recently used files are evicted first, the order is kept in a journal
+ * which is replayed on the first access. Whole cache is dropped
+ * once the application is updated, as resources identifiers could change.
+ * Cache does disk IO and should be used only from worker threads.
+ */
+final class BitmapDiskCache {
+
+    private static final String TAG = "BitmapDiskCache";
+
+    private static final String DIRECTORY_NAME = "chiplayout-bitmaps";
+    private static final String JOURNAL_NAME = "journal";
+    private static final String JOURNAL_MAGIC = "chiplayout.BitmapDiskCache";
+    private static final String FILE_EXTENSION = ".bin";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final char JOURNAL_PUT = 'P';
+    private static final char JOURNAL_READ = 'R';
+    private static final char JOURNAL_DELETE = 'D';
+
+    private static final int FILE_MAGIC = 0x434C4243;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Magic, version, width, height, config, payload length and checksum.
+     */
+    private static final int HEADER_SIZE = 7 * 4;
+
+    /**
+     * Journal is compacted once it has that many redundant lines per entry.
+     */
+    private static final int JOURNAL_REDUNDANCY = 4;
+    private static final int MIN_JOURNAL_LINES_TO_COMPACT = 512;
+
+    private static final long DEFAULT_MAX_SIZE_BYTES = 16L * 1024 * 1024;
+
+    @Nullable
+    private static volatile BitmapDiskCache instance;
+
+    @NonNull
+    private final Context context;
+    @NonNull
+    private final File directory;
+    private final long maxSizeBytes;
+
+    /**
+     * File names and their sizes in access order, guarded by this.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(0, 0.75F, true);
+
+    @Nullable
+    private String journalHeader;
+    @Nullable
+    private Writer journalWriter;
+    private boolean isOpened;
+    private long sizeBytes;
+    private int journalLineCount;
+
+    private BitmapDiskCache(@NonNull Context context, long maxSizeBytes) {
+        this.context = context;
+        this.directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Returns process-wide cache instance, which takes up to 16 MiB in the application cache directory.
+     * Does not touch the disk, so could be called from the main thread.
+     */
+    @NonNull
+    static BitmapDiskCache getInstance(@NonNull Context context) {
+        BitmapDiskCache cache = instance;
+        if (cache == null) {
+            synchronized (BitmapDiskCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    cache = new BitmapDiskCache(context.getApplicationContext(), DEFAULT_MAX_SIZE_BYTES);
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Loads transformed bitmap stored earlier with {@link #put(Resources, int, int, int, int, Bitmap)}
+     * @param resources resources the bitmap has been decoded from
+     * @param drawableId identifier of the source drawable
+     * @param width requested width
+     * @param height requested height
+     * @param transformation one of {@link BitmapMemoryCache#TRANSFORMATION_NONE}
+     *                       or {@link BitmapMemoryCache#TRANSFORMATION_CENTER_CROP}
+     * @return mutable bitmap taken from {@link BitmapPool} or null if there is no valid one on disk
+     */
+    @Nullable
+    @WorkerThread
+    Bitmap get(@NonNull Resources resources,
+               @DrawableRes int drawableId,
+               @IntRange(from = 1) int width,
+               @IntRange(from = 1) int height,
+               int transformation) {
+        final String name = fileName(resources, drawableId, width, height, transformation);
+
+        synchronized (this) {
+            open();
+            if (entries.get(name) == null) {
+                return null;
+            }
+            appendJournal(JOURNAL_READ, name, 0L);
+        }
+
+        final Bitmap bitmap = readBitmap(new File(directory, name));
+        if (bitmap == null) {
+            synchronized (this) {
+                removeEntry(name);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores bitmap pixels, bitmap should not be modified until this method returns.
+     * Only {@link Bitmap.Config#ARGB_8888} bitmaps are stored. Key does not include the theme,
+     * so drawables rasterized with a theme should not be stored.
+     * @param resources resources the bitmap has been decoded from
+     * @param drawableId identifier of the source drawable
+     * @param width requested width
+     * @param height requested height
+     * @param transformation one of {@link BitmapMemoryCache#TRANSFORMATION_NONE}
+     *                       or {@link BitmapMemoryCache#TRANSFORMATION_CENTER_CROP}
+     */
+    @WorkerThread
+    void put(@NonNull Resources resources,
+             @DrawableRes int drawableId,
+             @IntRange(from = 1) int width,
+             @IntRange(from = 1) int height,
+             int transformation,
+             @NonNull Bitmap bitmap) {
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+
+        final String name = fileName(resources, drawableId, width, height, transformation);
+
+        synchronized (this) {
+            open();
+            if (!directory.isDirectory()) {
+                return;
+            }
+        }
+
+        // temporary file is unique per thread, so concurrent writers of the same entry do not clash
+        final File temp = new File(directory, name + "." + Thread.currentThread().getId() + TEMP_EXTENSION);
+        final File file = new File(directory, name);
+        if (!writeBitmap(temp, bitmap) || !temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            final Long previous = entries.put(name, file.length());
+            if (previous != null) {
+                sizeBytes -= previous;
+            }
+            sizeBytes += file.length();
+            appendJournal(JOURNAL_PUT, name, file.length());
+            trimToSize(maxSizeBytes);
+        }
+    }
+
+    /**
+     * Deletes all stored bitmaps
+     */
+    @WorkerThread
+    synchronized void clear() {
+        closeJournal();
+        deleteContents(directory);
+        entries.clear();
+        sizeBytes = 0L;
+        isOpened = false;
+    }
+
+    /**
+     * @return size of all stored bitmaps in bytes
+     */
+    @WorkerThread
+    synchronized long getSizeBytes() {
+        open();
+        return sizeBytes;
+    }
+
+    /**
+     * @return identifies bitmap file, includes everything the pixels depend on
+     * except the theme, night mode is included as resources could have night variants
+     */
+    @NonNull
+    private static String fileName(@NonNull Resources resources,
+                                   @DrawableRes int drawableId,
+                                   int width,
+                                   int height,
+                                   int transformation) {
+        return String.format(Locale.US, "%08x_%d_%x_%dx%d_%d_%s%s",
+                drawableId, resources.getDisplayMetrics().densityDpi,
+                resources.getConfiguration().uiMode & Configuration.UI_MODE_NIGHT_MASK,
+                width, height, transformation, Bitmap.Config.ARGB_8888.name(), FILE_EXTENSION);
+    }
+
+    /**
+     * Replays journal on the first access. Journal which could not be read
+     * or has been written by another application version drops the whole cache.
+     */
+    private void open() {
+        if (isOpened) {
+            return;
+        }
+        isOpened = true;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create cache directory " + directory);
+            return;
+        }
+
+        final File journal = new File(directory, JOURNAL_NAME);
+        if (!readJournal(journal)) {
+            deleteContents(directory);
+            entries.clear();
+            sizeBytes = 0L;
+            journalLineCount = 0;
+        }
+
+        // files which are not in journal are leftovers of interrupted writes
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().equals(JOURNAL_NAME) && !entries.containsKey(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+
+        rewriteJournal();
+        trimToSize(maxSizeBytes);
+    }
+
+    /**
+     * Fills entries from journal
+     * @return false if journal is missing, corrupted or outdated
+     */
+    private boolean readJournal(@NonNull File journal) {
+        if (!journal.isFile()) {
+            return false;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(journal));
+            if (!journalHeader().equals(reader.readLine())) {
+                return false;
+            }
+
+            // the last line could be cut by a crash, journal is valid up to it
+            String line;
+            while ((line = reader.readLine()) != null && applyJournalLine(line)) {
+                journalLineCount++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read journal", e);
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+
+        // entries which files have been deleted by the system are dropped
+        final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            if (new File(directory, entry.getKey()).length() != entry.getValue()) {
+                sizeBytes -= entry.getValue();
+                iterator.remove();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies a single journal operation to entries
+     * @return false if line is malformed
+     */
+    private boolean applyJournalLine(@NonNull String line) {
+        final String[] parts = line.split(" ");
+        if (parts.length < 2 || parts[0].length() != 1) {
+            return false;
+        }
+
+        final String name = parts[1];
+        final Long previous;
+        switch (parts[0].charAt(0)) {
+            case JOURNAL_PUT:
+                if (parts.length != 3) {
+                    return false;
+                }
+
+                final long size;
+                try {
+                    size = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+
+                previous = entries.put(name, size);
+                sizeBytes += size - (previous == null ? 0L : previous);
+                return true;
+            case JOURNAL_READ:
+                entries.get(name);
+                return true;
+            case JOURNAL_DELETE:
+                previous = entries.remove(name);
+                sizeBytes -= previous == null ? 0L : previous;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Writes compact journal with the current entries, replaces the old one atomically
+     */
+    private void rewriteJournal() {
+        closeJournal();
+
+        final File journal = new File(directory, JOURNAL_NAME);
+        final File temp = new File(directory, JOURNAL_NAME + TEMP_EXTENSION);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(temp));
+            writer.write(journalHeader());
+            writer.write('\n');
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                writer.write(JOURNAL_PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+            writer.close();
+            writer = null;
+
+            if (!temp.renameTo(journal)) {
+                throw new IOException("Could not rename " + temp);
+            }
+
+            journalWriter = new BufferedWriter(new FileWriter(journal, true));
+            journalLineCount = entries.size();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write journal", e);
+            closeQuietly(writer);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Appends operation to the journal, compacts journal once it is mostly redundant
+     */
+    private void appendJournal(char operation, @NonNull String name, long size) {
+        if (journalWriter == null) {
+            return;
+        }
+
+        try {
+            journalWriter.write(operation == JOURNAL_PUT
+                    ? operation + " " + name + " " + size + "\n"
+                    : operation + " " + name + "\n");
+            journalWriter.flush();
+            journalLineCount++;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not append to journal", e);
+            closeJournal();
+            return;
+        }
+
+        if (journalLineCount >= MIN_JOURNAL_LINES_TO_COMPACT
+                && journalLineCount >= entries.size() * JOURNAL_REDUNDANCY) {
+            rewriteJournal();
+        }
+    }
+
+    private void closeJournal() {
+        closeQuietly(journalWriter);
+        journalWriter = null;
+    }
+
+    /**
+     * @return first line of the journal, ties journal to the application version
+     */
+    @NonNull
+    private String journalHeader() {
+        if (journalHeader != null) {
+            return journalHeader;
+        }
+
+        long appStamp;
+        try {
+            appStamp = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            appStamp = 0L;
+        }
+        journalHeader = JOURNAL_MAGIC + " " + FORMAT_VERSION + " " + appStamp;
+        return journalHeader;
+    }
+
+    /**
+     * Evicts the least recently used files until cache fits the given size
+     */
+    private void trimToSize(long size) {
+        final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (sizeBytes > size && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            sizeBytes -= entry.getValue();
+            new File(directory, entry.getKey()).delete();
+            appendJournal(JOURNAL_DELETE, entry.getKey(), 0L);
+        }
+    }
+
+    private void removeEntry(@NonNull String name) {
+        final Long size = entries.remove(name);
+        if (size != null) {
+            sizeBytes -= size;
+            new File(directory, name).delete();
+            appendJournal(JOURNAL_DELETE, name, 0L);
+        }
+    }
+
+    /**
+     * Writes header and pixels of the bitmap
+     * @return true if file has been written completely
+     */
+    private static boolean writeBitmap(@NonNull File file, @NonNull Bitmap bitmap) {
+        final int payloadLength = bitmap.getRowBytes() * bitmap.getHeight();
+        final ByteBuffer pixels = ByteBuffer.allocate(payloadLength);
+        bitmap.copyPixelsToBuffer(pixels);
+
+        final CRC32 checksum = new CRC32();
+        checksum.update(pixels.array(), 0, payloadLength);
+
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(file);
+            final DataOutputStream output = new DataOutputStream(stream);
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(bitmap.getWidth());
+            output.writeInt(bitmap.getHeight());
+            output.writeInt(bitmap.getConfig().ordinal());
+            output.writeInt(payloadLength);
+            output.writeInt((int) checksum.getValue());
+            output.write(pixels.array(), 0, payloadLength);
+            output.flush();
+            stream.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + file, e);
+            return false;
+        } finally {
+            closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Reads pixels into a pooled bitmap, validating them against the header
+     * @return bitmap or null if file is missing or corrupted
+     */
+    @Nullable
+    private static Bitmap readBitmap(@NonNull File file) {
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            if (input.length() < HEADER_SIZE
+                    || input.readInt() != FILE_MAGIC
+                    || input.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+
+            final int width = input.readInt();
+            final int height = input.readInt();
+            final int config = input.readInt();
+            final int payloadLength = input.readInt();
+            final int expectedChecksum = input.readInt();
+
+            if (width <= 0 || height <= 0
+                    || config != Bitmap.Config.ARGB_8888.ordinal()
+                    || (long) width * height * 4 != payloadLength
+                    || input.length() != HEADER_SIZE + (long) payloadLength) {
+                return null;
+            }
+
+            final byte[] pixels = new byte[payloadLength];
+            input.readFully(pixels);
+
+            final CRC32 checksum = new CRC32();
+            checksum.update(pixels, 0, payloadLength);
+            if ((int) checksum.getValue() != expectedChecksum) {
+                Log.w(TAG, "Checksum mismatch of " + file);
+                return null;
+            }
+
+            final Bitmap bitmap = BitmapPool.getInstance().getDirty(width, height, Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            return bitmap;
+        } catch (IOException e) {
+            return null;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemory while reading " + file);
+            return null;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    private static void deleteContents(@NonNull File directory) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+}
@@ -1,25 +1,127 @@
 package github.com.st235.chiplayout;
 
+import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.util.Log;
 
 import androidx.annotation.CheckResult;
 import androidx.annotation.DrawableRes;
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
 
 public class BitmapHelper {
+    private static final String TAG = "BitmapHelper";
 
     private BitmapHelper() {
     }
 
-    @NonNull
+    /**
+     * Decodes bitmap resource subsampled to the requested size.
+     * Results are shared through {@link BitmapMemoryCache}, so returned bitmap
+     * should not be mutated or recycled. Bitmap is retained on behalf of the caller,
+     * release it with {@link BitmapMemoryCache#release(Bitmap)} once it is not shown
+     * anymore to let it be reused after eviction.
+     * @return retained bitmap or null if resource could not be decoded
+     */
+    @Nullable
     @CheckResult
     public static Bitmap decodeSampledBitmapFromResource(@NonNull Resources res,
                                                          @DrawableRes int resId,
                                                          @IntRange(from = 0) int reqWidth,
                                                          @IntRange(from = 0) int reqHeight) {
+        return decodeSampledBitmapFromResource(res, null, resId, reqWidth, reqHeight);
+    }
+
+    /**
+     * Same as {@link #decodeSampledBitmapFromResource(Resources, int, int, int)},
+     * but decoded bitmap is also stored in {@link BitmapDiskCache},
+     * so after restart its pixels are only read from disk instead of being decoded.
+     * @return retained bitmap or null if resource could not be decoded
+     */
+    @Nullable
+    @CheckResult
+    public static Bitmap decodeSampledBitmapFromResource(@NonNull Context context,
+                                                         @DrawableRes int resId,
+                                                         @IntRange(from = 0) int reqWidth,
+                                                         @IntRange(from = 0) int reqHeight) {
+        return decodeSampledBitmapFromResource(context.getResources(), BitmapDiskCache.getInstance(context),
+                resId, reqWidth, reqHeight);
+    }
+
+    @Nullable
+    private static Bitmap decodeSampledBitmapFromResource(@NonNull Resources res,
+                                                          @Nullable BitmapDiskCache diskCache,
+                                                          @DrawableRes int resId,
+                                                          @IntRange(from = 0) int reqWidth,
+                                                          @IntRange(from = 0) int reqHeight) {
+        final BitmapMemoryCache cache = BitmapMemoryCache.getInstance();
+        // bitmap resources do not depend on theme, but could have night variants
+        final BitmapMemoryCache.Key key = new BitmapMemoryCache.Key(resId, reqWidth, reqHeight,
+                Bitmap.Config.ARGB_8888, BitmapMemoryCache.TRANSFORMATION_NONE,
+                res.getConfiguration().uiMode & Configuration.UI_MODE_NIGHT_MASK, 0);
+
+        Bitmap bitmap = cache.acquire(key);
+        if (bitmap == null) {
+            final Bitmap decoded = decodeSampledBitmap(res, diskCache, resId, reqWidth, reqHeight);
+            if (decoded != null) {
+                bitmap = cache.putAndRetain(key, decoded);
+                if (bitmap != decoded) {
+                    // another thread has decoded the same image meanwhile
+                    BitmapPool.getInstance().put(decoded);
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Reads subsampled bitmap from disk cache if there is one, decodes and stores it otherwise
+     */
+    @Nullable
+    private static Bitmap decodeSampledBitmap(@NonNull Resources res,
+                                              @Nullable BitmapDiskCache diskCache,
+                                              @DrawableRes int resId,
+                                              @IntRange(from = 0) int reqWidth,
+                                              @IntRange(from = 0) int reqHeight) {
+        if (diskCache == null || reqWidth <= 0 || reqHeight <= 0) {
+            return decodeSampledBitmap(res, resId, reqWidth, reqHeight);
+        }
+
+        Bitmap bitmap = diskCache.get(res, resId, reqWidth, reqHeight, BitmapMemoryCache.TRANSFORMATION_NONE);
+        if (bitmap == null) {
+            bitmap = decodeSampledBitmap(res, resId, reqWidth, reqHeight);
+            if (bitmap != null) {
+                diskCache.put(res, resId, reqWidth, reqHeight, BitmapMemoryCache.TRANSFORMATION_NONE, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes bitmap resource subsampled to the requested size bypassing cache.
+     * Decoding reuses memory of a suitable bitmap from {@link BitmapPool} if there is one,
+     * the result is mutable, so it could be returned to the pool afterwards.
+     */
+    @Nullable
+    @CheckResult
+    static Bitmap decodeSampledBitmap(@NonNull Resources res,
+                                      @DrawableRes int resId,
+                                      @IntRange(from = 0) int reqWidth,
+                                      @IntRange(from = 0) int reqHeight) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeResource(res, resId, options);
@@ -27,15 +129,152 @@ public class BitmapHelper {
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
 
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeResource(res, resId, options);
+        options.inMutable = true;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            options.inBitmap = BitmapPool.getInstance()
+                    .get(estimateByteCount(options), Bitmap.Config.ARGB_8888);
+        }
+
+        try {
+            return BitmapFactory.decodeResource(res, resId, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+
+            // pooled bitmap turned out to be too small for the image
+            BitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeResource(res, resId, options);
+        }
+    }
+
+    /**
+     * Estimates amount of bytes which decoded ARGB_8888 bitmap will take,
+     * taking into account subsampling and density scaling.
+     * Since api 24 decoded bounds are already scaled to the target density.
+     * @param options options with decoded bounds and calculated sample size
+     */
+    @CheckResult
+    private static int estimateByteCount(@NonNull BitmapFactory.Options options) {
+        float scale = 1f;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N
+                && options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0) {
+            scale = (float) options.inTargetDensity / options.inDensity;
+        }
+
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        final int width = (int) Math.ceil(Math.ceil((double) options.outWidth / sampleSize) * scale);
+        final int height = (int) Math.ceil(Math.ceil((double) options.outHeight / sampleSize) * scale);
+        return width * height * BitmapPool.bytesPerPixel(Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Decodes only the central square of bitmap resource subsampled to the requested size.
+     * Pixels outside of the square are never decoded, so there is no intermediate bitmap
+     * as with {@link #decodeSampledBitmap(Resources, int, int, int)} and {@link #cropBitmap(Bitmap)}.
+     * Decoding reuses memory of a suitable bitmap from {@link BitmapPool} if there is one.
+     * Bounds are read in raw pixels, as region decoder does not apply density scaling.
+     * @param size side of the square to fit the image to
+     * @return square bitmap or null if resource format does not support region decoding
+     */
+    @Nullable
+    @CheckResult
+    static Bitmap decodeCenterCropBitmap(@NonNull Resources res,
+                                         @DrawableRes int resId,
+                                         @IntRange(from = 1) int size) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.inScaled = false;
+        BitmapFactory.decodeResource(res, resId, options);
+
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        final int side = Math.min(width, height);
+        final int left = (width - side) / 2;
+        final int top = (height - side) / 2;
+
+        final BitmapFactory.Options regionOptions = new BitmapFactory.Options();
+        regionOptions.inSampleSize = calculateInSampleSize(side, side, size, size);
+        regionOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            final int sampledSide = (int) Math.ceil((double) side / regionOptions.inSampleSize);
+            regionOptions.inBitmap = BitmapPool.getInstance().get(
+                    sampledSide * sampledSide * BitmapPool.bytesPerPixel(Bitmap.Config.ARGB_8888),
+                    Bitmap.Config.ARGB_8888);
+        }
+
+        InputStream stream = null;
+        BitmapRegionDecoder decoder = null;
+        try {
+            stream = res.openRawResource(resId);
+            decoder = BitmapRegionDecoder.newInstance(stream, false);
+
+            final Rect region = new Rect(left, top, left + side, top + side);
+            Bitmap square;
+            try {
+                square = decoder.decodeRegion(region, regionOptions);
+            } catch (IllegalArgumentException e) {
+                if (regionOptions.inBitmap == null) {
+                    throw e;
+                }
+
+                // pooled bitmap turned out to be unsuitable for the region
+                BitmapPool.getInstance().put(regionOptions.inBitmap);
+                regionOptions.inBitmap = null;
+                square = decoder.decodeRegion(region, regionOptions);
+            }
+
+            if (square != null && square.getWidth() != square.getHeight()) {
+                // caller falls back to the full decode and crop
+                Log.w(TAG, "Region decoding produced non-square bitmap for resource " + resId);
+                BitmapPool.getInstance().put(square);
+                return null;
+            }
+            return square;
+        } catch (IOException e) {
+            Log.w(TAG, "Region decoding is not supported for resource " + resId);
+            if (regionOptions.inBitmap != null) {
+                BitmapPool.getInstance().put(regionOptions.inBitmap);
+            }
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            closeQuietly(stream);
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
     }
 
     @CheckResult
     private static int calculateInSampleSize(@NonNull BitmapFactory.Options options,
                                              @IntRange(from = 0) int reqWidth,
                                              @IntRange(from = 0) int reqHeight) {
-        final int height = options.outHeight;
-        final int width = options.outWidth;
+        return calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+    }
+
+    @CheckResult
+    private static int calculateInSampleSize(@IntRange(from = 0) int width,
+                                             @IntRange(from = 0) int height,
+                                             @IntRange(from = 0) int reqWidth,
+                                             @IntRange(from = 0) int reqHeight) {
         int inSampleSize = 1;
 
         if (height > reqHeight || width > reqWidth) {
@@ -51,4 +290,127 @@ public class BitmapHelper {
 
         return inSampleSize;
     }
+
+    /**
+     * Creates center cropped square bitmap from origin.
+     * Cropped bitmap is taken from {@link BitmapPool} when possible,
+     * origin is left untouched.
+     * @param bitmap which need to be cropped
+     * @return square bitmap instance or origin if it is already square
+     */
+    @Nullable
+    @CheckResult
+    public static Bitmap cropBitmap(@Nullable Bitmap bitmap) {
+        if (bitmap == null) {
+            return null;
+        }
+
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (width == height) {
+            return bitmap;
+        }
+
+        final int side = Math.min(width, height);
+        final int left = (width - side) / 2;
+        final int top = (height - side) / 2;
+
+        final Bitmap.Config config = bitmap.getConfig() == null
+                ? Bitmap.Config.ARGB_8888 : bitmap.getConfig();
+        final Bitmap cropped = BitmapPool.getInstance().getDirty(side, side, config);
+
+        new Canvas(cropped).drawBitmap(bitmap,
+                new Rect(left, top, left + side, top + side),
+                new Rect(0, 0, side, side),
+                null);
+        return cropped;
+    }
+
+    /**
+     * Rasterizes drawable into a square of the given side scaling it to cover the whole square,
+     * parts of the drawable outside of the square are cropped evenly from both sides.
+     * Drawables without intrinsic size are stretched to the square.
+     * Bitmap is taken from {@link BitmapPool} when possible.
+     * @param drawable which need to be rasterized
+     * @param size side of the square
+     * @return square bitmap or null if there is no drawable
+     */
+    @Nullable
+    @CheckResult
+    static Bitmap rasterizeCenterCrop(@Nullable Drawable drawable,
+                                      @IntRange(from = 1) int size) {
+        if (drawable == null) {
+            return null;
+        }
+
+        final int intrinsicWidth = drawable.getIntrinsicWidth();
+        final int intrinsicHeight = drawable.getIntrinsicHeight();
+
+        int width = size;
+        int height = size;
+        if (intrinsicWidth > 0 && intrinsicHeight > 0) {
+            final float scale = Math.max((float) size / intrinsicWidth, (float) size / intrinsicHeight);
+            width = Math.max(size, Math.round(intrinsicWidth * scale));
+            height = Math.max(size, Math.round(intrinsicHeight * scale));
+        }
+
+        final int left = (size - width) / 2;
+        final int top = (size - height) / 2;
+
+        try {
+            final Bitmap bitmap = BitmapPool.getInstance().getDirty(size, size, Bitmap.Config.ARGB_8888);
+            drawable.setBounds(left, top, left + width, top + height);
+            drawable.draw(new Canvas(bitmap));
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemory while rasterizing drawable!");
+            return null;
+        }
+    }
+
+    /**
+     * Converts drawable to bitmap.
+     * If the drawable has no intrinsic width or height the fallback sizes will be used.
+     * @param drawable which need to be converted
+     * @param fallbackWidth width to be used if drawable has no intrinsic one
+     * @param fallbackHeight height to be used if drawable has no intrinsic one
+     * @return bitmap instance of drawable
+     */
+    @Nullable
+    @CheckResult
+    public static Bitmap drawableToBitmap(@Nullable Drawable drawable,
+                                         @IntRange(from = 0) int fallbackWidth,
+                                         @IntRange(from = 0) int fallbackHeight) {
+        if (drawable == null) {
+            return null;
+        }
+
+        if (drawable instanceof BitmapDrawable) {
+            return ((BitmapDrawable) drawable).getBitmap();
+        }
+
+        int intrinsicWidth = drawable.getIntrinsicWidth();
+        int intrinsicHeight = drawable.getIntrinsicHeight();
+
+        if (intrinsicWidth == -1 || intrinsicHeight == -1) {
+            intrinsicWidth = fallbackWidth;
+            intrinsicHeight = fallbackHeight;
+        }
+
+        if (intrinsicWidth <= 0 || intrinsicHeight <= 0) {
+            return null;
+        }
+
+        try {
+            Bitmap bitmap =
+                    Bitmap.createBitmap(intrinsicWidth, intrinsicHeight, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(bitmap);
+            drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
+            drawable.draw(canvas);
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemory while creating bitmap!");
+            return null;
+        }
+    }
 }
@@ -0,0 +1,397 @@
+package github.com.st235.chiplayout;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.graphics.BitmapCompat;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide memory cache of decoded bitmaps bounded by their size in bytes.
+ *
+ * Bitmaps are stored already transformed, ie sampled and cropped, so views showing
+ * the same resource at the same size share a single bitmap instance.
+ * Cached bitmaps are shared, so they should never be mutated or recycled by clients.
+ * Least recently used bitmaps are evicted first, the cache also trims itself
+ * in response to {@link ComponentCallbacks2} memory levels.
+ *
+ * Clients retain bitmaps they show and release them afterwards. Once a bitmap
+ * is both evicted and released it goes to {@link BitmapPool} for reuse.
+ */
+public final class BitmapMemoryCache implements ComponentCallbacks2 {
+
+    /**
+     * Bitmap is decoded as is, only subsampled to the requested size.
+     */
+    public static final int TRANSFORMATION_NONE = 0;
+
+    /**
+     * Bitmap is subsampled and center cropped to a square.
+     */
+    public static final int TRANSFORMATION_CENTER_CROP = 1;
+
+    private static final int DEFAULT_MEMORY_FRACTION = 8;
+
+    @Nullable
+    private static volatile BitmapMemoryCache instance;
+
+    @NonNull
+    private final LruCache<Key, Bitmap> cache;
+
+    /**
+     * Amount of clients using bitmap, guarded by this.
+     */
+    private final Map<Bitmap, Integer> references = new IdentityHashMap<>();
+
+    /**
+     * Bitmaps which are currently stored in {@link #cache}, guarded by this.
+     */
+    private final Map<Bitmap, Key> cachedBitmaps = new IdentityHashMap<>();
+
+    /**
+     * Bitmaps which are currently stored in {@link #cache} by their keys, guarded by this.
+     */
+    private final Map<Key, Bitmap> cachedKeys = new HashMap<>();
+
+    private volatile boolean isRegistered;
+
+    /**
+     * Night mode bits of the application configuration, guarded by this.
+     */
+    private int lastNightMode;
+
+    private BitmapMemoryCache(@IntRange(from = 1) int maxSizeBytes) {
+        cache = new LruCache<Key, Bitmap>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(@NonNull Key key, @NonNull Bitmap value) {
+                return BitmapCompat.getAllocationByteCount(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted,
+                                        @NonNull Key key,
+                                        @NonNull Bitmap oldValue,
+                                        @Nullable Bitmap newValue) {
+                if (oldValue != newValue) {
+                    onBitmapRemoved(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return process-wide cache instance, which takes up to 1/8 of the heap
+     */
+    @NonNull
+    public static BitmapMemoryCache getInstance() {
+        BitmapMemoryCache cache = instance;
+        if (cache == null) {
+            synchronized (BitmapMemoryCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    final long maxMemory = Runtime.getRuntime().maxMemory();
+                    cache = new BitmapMemoryCache(
+                            (int) Math.min(Integer.MAX_VALUE, maxMemory / DEFAULT_MEMORY_FRACTION));
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Subscribes cache to the application memory and configuration callbacks.
+     * Images of the previous night mode are evicted once it changes.
+     * Could be safely called many times, only the first call registers cache.
+     */
+    public void registerComponentCallbacks(@NonNull Context context) {
+        if (isRegistered) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!isRegistered) {
+                final Context application = context.getApplicationContext();
+                lastNightMode = application.getResources().getConfiguration().uiMode
+                        & Configuration.UI_MODE_NIGHT_MASK;
+                application.registerComponentCallbacks(this);
+                isRegistered = true;
+            }
+        }
+    }
+
+    /**
+     * Returns cached bitmap, marks it as the most recently used one
+     * and retains it on behalf of the caller.
+     * Caller should {@link #release(Bitmap)} bitmap once it is not shown anymore.
+     * @return bitmap or null if there is no one for the key
+     */
+    @Nullable
+    public synchronized Bitmap acquire(@NonNull Key key) {
+        final Bitmap bitmap = cache.get(key);
+        if (bitmap != null) {
+            retain(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Puts bitmap into cache, bitmap should not be modified afterwards.
+     * Does not retain bitmap.
+     */
+    public synchronized void put(@NonNull Key key, @NonNull Bitmap bitmap) {
+        cachedBitmaps.put(bitmap, key);
+        cachedKeys.put(key, bitmap);
+        cache.put(key, bitmap);
+    }
+
+    /**
+     * Puts bitmap into cache and retains it on behalf of the caller in one step,
+     * so another thread could not evict and pool it before it is retained.
+     * If there is already a bitmap for the key, that one is retained and returned instead,
+     * the passed one is not cached and could be returned to {@link BitmapPool} by the caller.
+     * @return retained bitmap which is cached under the key
+     */
+    @NonNull
+    public synchronized Bitmap putAndRetain(@NonNull Key key, @NonNull Bitmap bitmap) {
+        final Bitmap existing = cachedKeys.get(key);
+        if (existing != null) {
+            retain(existing);
+            return existing;
+        }
+
+        retain(bitmap);
+        put(key, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Checks bitmap presence without affecting its recency or hit statistics
+     * @return true if there is a bitmap for the key
+     */
+    synchronized boolean contains(@NonNull Key key) {
+        return cachedKeys.containsKey(key);
+    }
+
+    /**
+     * @return true if there is a bitmap for the key and someone has retained it
+     */
+    synchronized boolean isInUse(@NonNull Key key) {
+        final Bitmap bitmap = cachedKeys.get(key);
+        return bitmap != null && references.containsKey(bitmap);
+    }
+
+    /**
+     * Marks bitmap as used, so it will not be reused even after eviction
+     */
+    public synchronized void retain(@NonNull Bitmap bitmap) {
+        final Integer count = references.get(bitmap);
+        references.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Marks bitmap as not used by the caller anymore.
+     * If bitmap is neither used nor cached it is moved to {@link BitmapPool}.
+     */
+    public void release(@NonNull Bitmap bitmap) {
+        synchronized (this) {
+            final Integer count = references.get(bitmap);
+            if (count == null) {
+                return;
+            }
+
+            if (count > 1) {
+                references.put(bitmap, count - 1);
+                return;
+            }
+
+            references.remove(bitmap);
+            if (cachedBitmaps.containsKey(bitmap)) {
+                return;
+            }
+        }
+
+        BitmapPool.getInstance().put(bitmap);
+    }
+
+    /**
+     * Moves evicted or replaced bitmap to pool unless someone still uses it
+     */
+    private void onBitmapRemoved(@NonNull Bitmap bitmap) {
+        synchronized (this) {
+            final Key key = cachedBitmaps.remove(bitmap);
+            // bitmap replaced under the same key has already been remapped
+            if (key != null && cachedKeys.get(key) == bitmap) {
+                cachedKeys.remove(key);
+            }
+            if (references.containsKey(bitmap)) {
+                return;
+            }
+        }
+
+        BitmapPool.getInstance().put(bitmap);
+    }
+
+    /**
+     * @return amount of lookups which returned bitmap
+     */
+    public int getHitCount() {
+        return cache.hitCount();
+    }
+
+    /**
+     * @return amount of lookups which did not find bitmap
+     */
+    public int getMissCount() {
+        return cache.missCount();
+    }
+
+    /**
+     * @return amount of bitmaps evicted to fit the size budget
+     */
+    public int getEvictionCount() {
+        return cache.evictionCount();
+    }
+
+    /**
+     * @return size of all cached bitmaps in bytes
+     */
+    public int getSizeBytes() {
+        return cache.size();
+    }
+
+    /**
+     * @return max size of all cached bitmaps in bytes
+     */
+    public int getMaxSizeBytes() {
+        return cache.maxSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            cache.evictAll();
+            AvatarCompositeCache.getInstance().trimToSize(0);
+            BitmapPool.getInstance().clear();
+        } else if (level >= TRIM_MEMORY_BACKGROUND
+                || level == TRIM_MEMORY_RUNNING_LOW
+                || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            cache.trimToSize(cache.maxSize() / 2);
+            AvatarCompositeCache.getInstance().trimToSize(
+                    AvatarCompositeCache.getInstance().getMaxSizeBytes() / 2);
+            BitmapPool.getInstance().trimToSize(BitmapPool.getInstance().getMaxSizeBytes() / 2);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onLowMemory() {
+        cache.evictAll();
+        AvatarCompositeCache.getInstance().trimToSize(0);
+        BitmapPool.getInstance().clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        final int nightMode = newConfig.uiMode & Configuration.UI_MODE_NIGHT_MASK;
+        final boolean isNightModeChanged;
+        synchronized (this) {
+            isNightModeChanged = lastNightMode != nightMode;
+            lastNightMode = nightMode;
+        }
+
+        // keys include night mode, so images of the previous one would be only evicted by size
+        if (isNightModeChanged) {
+            cache.evictAll();
+            AvatarCompositeCache.getInstance().trimToSize(0);
+        }
+    }
+
+    /**
+     * Identifies transformed bitmap
+     */
+    public static final class Key {
+
+        @DrawableRes
+        private final int resourceId;
+        private final int width;
+        private final int height;
+        @NonNull
+        private final Bitmap.Config config;
+        private final int transformation;
+        private final int nightMode;
+        private final int themeId;
+
+        /**
+         * Creates new key
+         * @param resourceId identifier of the source drawable
+         * @param width requested width
+         * @param height requested height
+         * @param config bitmap config
+         * @param transformation one of {@link #TRANSFORMATION_NONE} or {@link #TRANSFORMATION_CENTER_CROP}
+         * @param nightMode night mode bits of the resources configuration,
+         *                  as resources could have night variants
+         * @param themeId identifies theme the drawable has been inflated with or 0 if it does not depend on theme
+         */
+        public Key(@DrawableRes int resourceId,
+                   int width,
+                   int height,
+                   @NonNull Bitmap.Config config,
+                   int transformation,
+                   int nightMode,
+                   int themeId) {
+            this.resourceId = resourceId;
+            this.width = width;
+            this.height = height;
+            this.config = config;
+            this.transformation = transformation;
+            this.nightMode = nightMode;
+            this.themeId = themeId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+            return resourceId == key.resourceId
+                    && width == key.width
+                    && height == key.height
+                    && transformation == key.transformation
+                    && nightMode == key.nightMode
+                    && themeId == key.themeId
+                    && config == key.config;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = resourceId;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + config.hashCode();
+            result = 31 * result + transformation;
+            result = 31 * result + nightMode;
+            result = 31 * result + themeId;
+            return result;
+        }
+    }
+}
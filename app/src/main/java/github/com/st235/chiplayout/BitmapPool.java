@@ -0,0 +1,252 @@
+package github.com.st235.chiplayout;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.graphics.BitmapCompat;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Process-wide pool of unused mutable bitmaps bounded by their size in bytes.
+ *
+ * Bitmaps are bucketed by config and allocation size, so a request is served
+ * by the smallest pooled bitmap which is big enough to be reconfigured
+ * or to be used as {@link android.graphics.BitmapFactory.Options#inBitmap}.
+ * Reuse requires {@link Bitmap#reconfigure(int, int, Bitmap.Config)},
+ * so pool stays empty before {@link Build.VERSION_CODES#KITKAT}.
+ */
+public final class BitmapPool {
+
+    private static final int DEFAULT_MEMORY_FRACTION = 16;
+
+    /**
+     * Pooled bitmap is not used for requests which are much smaller than it.
+     */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    @Nullable
+    private static volatile BitmapPool instance;
+
+    private final Map<Bitmap.Config, TreeMap<Integer, ArrayDeque<Bitmap>>> buckets =
+            new EnumMap<>(Bitmap.Config.class);
+
+    /**
+     * All pooled bitmaps in the order they were put, the oldest ones are evicted first.
+     */
+    private final LinkedHashSet<Bitmap> bitmaps = new LinkedHashSet<>();
+
+    private final int maxSizeBytes;
+    private int sizeBytes;
+
+    private int hitCount;
+    private int missCount;
+
+    private BitmapPool(@IntRange(from = 0) int maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * @return process-wide pool instance, which takes up to 1/16 of the heap
+     */
+    @NonNull
+    public static BitmapPool getInstance() {
+        BitmapPool pool = instance;
+        if (pool == null) {
+            synchronized (BitmapPool.class) {
+                pool = instance;
+                if (pool == null) {
+                    final long maxMemory = Runtime.getRuntime().maxMemory();
+                    pool = new BitmapPool(
+                            (int) Math.min(Integer.MAX_VALUE, maxMemory / DEFAULT_MEMORY_FRACTION));
+                    instance = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Takes bitmap which could hold at least the given amount of bytes
+     * @return pooled bitmap or null if there is no suitable one,
+     * the bitmap is removed from pool and its content is undefined
+     */
+    @Nullable
+    public synchronized Bitmap get(@IntRange(from = 0) int byteCount, @NonNull Bitmap.Config config) {
+        final TreeMap<Integer, ArrayDeque<Bitmap>> bucket = buckets.get(config);
+        final Map.Entry<Integer, ArrayDeque<Bitmap>> entry =
+                bucket == null ? null : bucket.ceilingEntry(byteCount);
+
+        if (entry == null || entry.getKey() > (long) byteCount * MAX_SIZE_MULTIPLE) {
+            missCount++;
+            return null;
+        }
+
+        final Bitmap bitmap = entry.getValue().poll();
+        if (entry.getValue().isEmpty()) {
+            bucket.remove(entry.getKey());
+        }
+
+        bitmaps.remove(bitmap);
+        sizeBytes -= entry.getKey();
+        hitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Takes bitmap from pool and reconfigures it to the given size,
+     * or creates new mutable one if there is no suitable bitmap in pool.
+     * @return mutable bitmap filled with transparent color
+     */
+    @NonNull
+    public Bitmap getDirty(@IntRange(from = 1) int width,
+                           @IntRange(from = 1) int height,
+                           @NonNull Bitmap.Config config) {
+        final Bitmap bitmap = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                ? get(width * height * bytesPerPixel(config), config)
+                : null;
+
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+
+        reconfigure(bitmap, width, height, config);
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * Returns unused bitmap to pool.
+     * Bitmap should not be used by anyone after this call.
+     * Immutable, recycled or too big bitmaps are dropped.
+     * @return true if bitmap has been pooled
+     */
+    public boolean put(@NonNull Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT
+                || !bitmap.isMutable() || bitmap.isRecycled() || bitmap.getConfig() == null) {
+            return false;
+        }
+
+        final int byteCount = BitmapCompat.getAllocationByteCount(bitmap);
+
+        synchronized (this) {
+            if (byteCount > maxSizeBytes || !bitmaps.add(bitmap)) {
+                return false;
+            }
+
+            TreeMap<Integer, ArrayDeque<Bitmap>> bucket = buckets.get(bitmap.getConfig());
+            if (bucket == null) {
+                bucket = new TreeMap<>();
+                buckets.put(bitmap.getConfig(), bucket);
+            }
+
+            ArrayDeque<Bitmap> sameSize = bucket.get(byteCount);
+            if (sameSize == null) {
+                sameSize = new ArrayDeque<>();
+                bucket.put(byteCount, sameSize);
+            }
+
+            sameSize.offer(bitmap);
+            sizeBytes += byteCount;
+            trimToSize(maxSizeBytes);
+            return true;
+        }
+    }
+
+    /**
+     * Evicts the oldest bitmaps until pool fits the given size
+     */
+    public synchronized void trimToSize(@IntRange(from = 0) int size) {
+        final Iterator<Bitmap> iterator = bitmaps.iterator();
+        while (sizeBytes > size && iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            iterator.remove();
+
+            final int byteCount = BitmapCompat.getAllocationByteCount(bitmap);
+            final TreeMap<Integer, ArrayDeque<Bitmap>> bucket = buckets.get(bitmap.getConfig());
+            final ArrayDeque<Bitmap> sameSize = bucket.get(byteCount);
+            sameSize.remove(bitmap);
+            if (sameSize.isEmpty()) {
+                bucket.remove(byteCount);
+            }
+
+            sizeBytes -= byteCount;
+        }
+    }
+
+    /**
+     * Evicts all bitmaps
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return amount of requests served by pooled bitmaps
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return amount of requests which had to allocate new bitmap
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return share of requests served by pooled bitmaps, from 0 to 1
+     */
+    public synchronized float getReuseRate() {
+        final int requests = hitCount + missCount;
+        return requests == 0 ? 0f : (float) hitCount / requests;
+    }
+
+    /**
+     * @return size of all pooled bitmaps in bytes
+     */
+    public synchronized int getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * @return max size of all pooled bitmaps in bytes
+     */
+    public int getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    /**
+     * @return amount of bytes used by a single pixel of the given config
+     */
+    static int bytesPerPixel(@NonNull Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case ARGB_8888:
+            default:
+                return 4;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(@NonNull Bitmap bitmap,
+                                    int width,
+                                    int height,
+                                    @NonNull Bitmap.Config config) {
+        bitmap.reconfigure(width, height, config);
+    }
+}
@@ -0,0 +1,77 @@
+package github.com.st235.chiplayout;
+
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.view.View;
+import android.view.ViewGroup;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * Provides chips for {@link ChipLayout} working in the virtualized mode.
+ *
+ * Only chips from the rows inside the visible window are bound to views,
+ * all others are positioned with the help of cached measurements
+ * or cheap size estimates provided by the adapter.
+ */
+public abstract class ChipAdapter {
+
+    private final DataSetObservable dataSetObservable = new DataSetObservable();
+
+    /**
+     * @return total amount of chips
+     */
+    @IntRange(from = 0)
+    public abstract int getItemCount();
+
+    /**
+     * Creates new chip view.
+     * The view will be reused for other positions once it leaves visible window.
+     * @param parent a layout which will host the view
+     * @return new unbound chip view
+     */
+    @NonNull
+    public abstract View createView(@NonNull ViewGroup parent);
+
+    /**
+     * Binds data at the given position to the chip view.
+     * @param view a view previously created by {@link #createView(ViewGroup)}
+     * @param position a position of an item
+     */
+    public abstract void bindView(@NonNull View view, @IntRange(from = 0) int position);
+
+    /**
+     * Estimates width of the chip, including margins,
+     * until the real view is measured.
+     * @param position a position of an item
+     * @return approximate outer width of the chip
+     */
+    @IntRange(from = 0)
+    public abstract int estimateWidth(@IntRange(from = 0) int position);
+
+    /**
+     * Estimates height of the chip, including margins,
+     * until the real view is measured.
+     * @param position a position of an item
+     * @return approximate outer height of the chip
+     */
+    @IntRange(from = 0)
+    public abstract int estimateHeight(@IntRange(from = 0) int position);
+
+    /**
+     * Notifies attached layout that data has been changed
+     * and all chips should be rebound and remeasured.
+     */
+    public final void notifyDataSetChanged() {
+        dataSetObservable.notifyChanged();
+    }
+
+    void registerDataSetObserver(@NonNull DataSetObserver observer) {
+        dataSetObservable.registerObserver(observer);
+    }
+
+    void unregisterDataSetObserver(@NonNull DataSetObserver observer) {
+        dataSetObservable.unregisterObserver(observer);
+    }
+}
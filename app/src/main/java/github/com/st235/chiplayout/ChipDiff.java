@@ -0,0 +1,60 @@
+package github.com.st235.chiplayout;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Helps to find out which items keep their relative order between two lists.
+ *
+ * Items which belong to the longest increasing subsequence of their new positions
+ * could stay in place, all other items have to be moved. The subsequence is found
+ * in O(n log n) with patience sorting.
+ */
+final class ChipDiff {
+
+    private ChipDiff() {
+    }
+
+    /**
+     * Marks values which form the longest strictly increasing subsequence.
+     * @param values sequence to look through
+     * @param count amount of values to use
+     * @param out destination marks, should fit count values
+     * @return length of the subsequence
+     */
+    static int markLongestIncreasing(@NonNull int[] values, int count, @NonNull boolean[] out) {
+        // tails[k] is index of the smallest tail of increasing subsequences of length k + 1
+        final int[] tails = new int[count];
+        final int[] previous = new int[count];
+        int length = 0;
+
+        for (int i = 0; i < count; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            out[i] = false;
+        }
+
+        int index = length > 0 ? tails[length - 1] : -1;
+        while (index >= 0) {
+            out[index] = true;
+            index = previous[index];
+        }
+        return length;
+    }
+}
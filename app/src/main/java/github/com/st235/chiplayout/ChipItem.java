@@ -0,0 +1,35 @@
+package github.com.st235.chiplayout;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Chip shown by {@link ChipLayout#setItems(java.util.List, int, int)}.
+ *
+ * Chips with the same id are considered to be the same chip, so their views
+ * are kept and only rebound when the layout receives a new list of items.
+ */
+public final class ChipItem {
+
+    private final long id;
+    @NonNull
+    private final String label;
+
+    /**
+     * Creates new item
+     * @param id stable identifier, should be unique within a list
+     * @param label text of the chip
+     */
+    public ChipItem(long id, @NonNull String label) {
+        this.id = id;
+        this.label = label;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    @NonNull
+    public String getLabel() {
+        return label;
+    }
+}
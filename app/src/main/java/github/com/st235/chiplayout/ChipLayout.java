@@ -1,20 +1,355 @@
 package github.com.st235.chiplayout;
 
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.animation.ValueAnimator;
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.res.TypedArray;
+import android.database.DataSetObserver;
+import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.os.Build;
+import android.os.Bundle;
 import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.MotionEvent;
+import android.view.SoundEffectConstants;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.animation.DecelerateInterpolator;
 import android.widget.LinearLayout;
+import android.widget.TextView;
 
+import androidx.annotation.IntRange;
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Px;
+import androidx.annotation.StyleRes;
+import androidx.appcompat.view.ContextThemeWrapper;
+import androidx.core.os.TraceCompat;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.view.ViewCompat;
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat;
+import androidx.core.view.accessibility.AccessibilityNodeProviderCompat;
+import androidx.core.widget.TextViewCompat;
+import androidx.customview.widget.ExploreByTouchHelper;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Layout for positioning chip components as a group.
  */
 public class ChipLayout extends ViewGroup {
 
+    /**
+     * Value of {@link #setMaxRows(int)} which lets chips take as many rows as they need.
+     */
+    public static final int NO_MAX_ROWS = Integer.MAX_VALUE;
+
+    /**
+     * Chips fill every row as much as possible before wrapping to the next one.
+     */
+    public static final int WRAP_GREEDY = 0;
+
+    /**
+     * Chips are spread so rows have similar widths, including the last one.
+     */
+    public static final int WRAP_BALANCED = 1;
+
+    private static final int DEFAULT_BALANCED_WRAP_MAX_ITEMS = 2000;
+
+    private static final int UNKNOWN_SIZE = -1;
+
+    /**
+     * Accessibility virtual view id of the overflow chip, text chips use their indices.
+     * Integer.MAX_VALUE is not used, as platform marks nodes of child views with it.
+     */
+    private static final int OVERFLOW_CHIP_VIRTUAL_ID = Integer.MAX_VALUE - 1;
+
+    /**
+     * Listens for clicks on chips drawn without child views.
+     */
+    public interface OnChipClickListener {
+
+        /**
+         * Called when chip has been clicked
+         * @param position is an index of the chip in the list passed to the layout
+         */
+        void onChipClick(int position);
+    }
+
+    /**
+     * Listens for clicks on the "+N" overflow chip.
+     */
+    public interface OnOverflowChipClickListener {
+
+        /**
+         * Called when overflow chip has been clicked
+         * @param hiddenCount amount of chips which did not fit into max rows
+         */
+        void onOverflowChipClick(int hiddenCount);
+    }
+
+    private final FlowLineBreaker lineBreaker = new FlowLineBreaker();
+
+    /**
+     * Children outer sizes, ie with margins, passed to {@link #lineBreaker}.
+     */
+    private int[] childWidths = new int[0];
+    private int[] childHeights = new int[0];
+
+    private final ArrayDeque<View> scrapViews = new ArrayDeque<>();
+    private final Rect visibleRect = new Rect();
+
+    private final DataSetObserver adapterObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            onAdapterDataChanged();
+        }
+
+        @Override
+        public void onInvalidated() {
+            onAdapterDataChanged();
+        }
+    };
+
+    private final ViewTreeObserver.OnScrollChangedListener scrollChangedListener =
+            new ViewTreeObserver.OnScrollChangedListener() {
+                @Override
+                public void onScrollChanged() {
+                    bindVisibleRows();
+                }
+            };
+
+    private final Runnable reflowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            requestLayout();
+        }
+    };
+
+    @Nullable
+    private ChipAdapter adapter;
+
+    /**
+     * Outer sizes of adapter items measured at least once
+     * or {@link #UNKNOWN_SIZE} if item has never been bound.
+     */
+    private int[] itemWidths = new int[0];
+    private int[] itemHeights = new int[0];
+
+    /**
+     * Adapter position of the first child, children always
+     * represent a contiguous range of adapter items.
+     */
+    private int firstBoundPosition;
+
+    private int lastWidthMeasureSpec;
+    private int lastHeightMeasureSpec;
+    private int lastHorizontalPadding;
+    private int lastVerticalPadding;
+
+    /**
+     * Children at the moment of the last measure pass, used to find out
+     * which of them have been added, removed or requested layout since then.
+     * {@link #measuredChildCount} is {@link #UNKNOWN_SIZE} when there are no valid results.
+     */
+    private View[] measuredChildren = new View[0];
+    private int measuredChildCount = UNKNOWN_SIZE;
+    private int measuredChildState;
+
+    /**
+     * Amount of children measured during the current pass, reported to {@link Instrumentation}.
+     */
+    private int childrenMeasuredInPass;
+
+    private int maxRows = NO_MAX_ROWS;
+
+    private int wrapMode = WRAP_GREEDY;
+    private int balancedWrapMaxItems = DEFAULT_BALANCED_WRAP_MAX_ITEMS;
+
+    /**
+     * Amount of leading children which fit into {@link #maxRows},
+     * the rest of children are neither measured, laid out nor drawn.
+     */
+    private int visibleChildCount = Integer.MAX_VALUE;
+
+    @Nullable
+    private OverflowChip overflowChip;
+
+    /**
+     * Whether {@link #overflowChip} takes part in the current rows,
+     * it is always the item right after the visible children.
+     */
+    private boolean isOverflowChipShown;
+
+    /**
+     * Amount of hidden chips shown by the overflow chip as of the last layout pass or 0,
+     * accessibility services are notified once it changes.
+     */
+    private int laidOutOverflowCount;
+
+    private boolean isOverflowChipPressed;
+
+    @Nullable
+    private OnOverflowChipClickListener onOverflowChipClickListener;
+
+    /**
+     * Whether rows of {@link #lineBreaker} could be used as an index of children bounds.
+     * Set by the layout pass when every laid out child sits exactly
+     * at its row position, ie has neither transformation nor elevation.
+     */
+    private boolean areRowsIndexed;
+
+    /**
+     * Whether some child could have been transformed since the layout pass.
+     * Noticed from child invalidations on Api 26 and above, see {@link #areChildrenUntransformed(int, int, int)}.
+     */
+    private boolean hasTransformedChildren;
+
+    /**
+     * Whether the current gesture is dispatched with the rows index, decided on the down event.
+     */
+    private boolean isDispatchingByRows;
+    private boolean isInterceptDisallowed;
+
+    @Nullable
+    private View rowTouchTarget;
+
+    private final Rect drawClipBounds = new Rect();
+
+    private final Rect chipBounds = new Rect();
+
+    @Nullable
+    private TextChips textChips;
+    @Nullable
+    private ChipsAccessibilityHelper chipsAccessibilityHelper;
+    @Nullable
+    private OnChipClickListener onChipClickListener;
+
+    private int pressedChip = TextChips.NO_CHIP;
+
+    private final ChipTextShaper.Callback tagsCallback = new ChipTextShaper.Callback() {
+        @Override
+        public void onTextsShaped(@NonNull ChipTextShaper.Request request,
+                                  @NonNull List<PrecomputedTextCompat> texts) {
+            if (request != tagsRequest) {
+                return;
+            }
+
+            tagsRequest = null;
+            attachTags(texts);
+        }
+    };
+
+    @Nullable
+    private ChipTextShaper.Request tagsRequest;
+    @Nullable
+    private Context tagsContext;
+    @StyleRes
+    private int tagsTheme;
+    @Px
+    private int tagsMargin;
+
+    private final FrameBudget tagsBudget = new FrameBudget();
+    private final Choreographer.FrameCallback tagsFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            isTagsFramePosted = false;
+            attachStreamedTags(tagsBudget.nextBatchSize(frameTimeNanos));
+        }
+    };
+
+    @Nullable
+    private Iterator<String> tagsStream;
+    private boolean isTagsFramePosted;
+
+    private boolean isChangeAnimationEnabled;
+    private long changeAnimationDuration;
+
+    /**
+     * Single animator driving all chips between their previous and new positions.
+     */
+    private final ValueAnimator changeAnimator = ValueAnimator.ofFloat(0F, 1F);
+
+    /**
+     * Animated chips, their starting offsets from the new positions and their starting and target alphas,
+     * first animatedChildCount are in use.
+     */
+    private View[] animatedChildren = new View[0];
+    private float[] animatedFromXs = new float[0];
+    private float[] animatedFromYs = new float[0];
+    private float[] animatedFromAlphas = new float[0];
+    private float[] animatedToAlphas = new float[0];
+    private int animatedChildCount;
+
+    /**
+     * Visual positions and alphas of children captured before layout, NaN if child has not been shown before.
+     */
+    private float[] previousXs = new float[0];
+    private float[] previousYs = new float[0];
+    private float[] previousAlphas = new float[0];
+
+    /**
+     * Whether rows index could be used once animation ends.
+     */
+    private boolean areRowsIndexedWhenIdle;
+
+    /**
+     * Amount of removed chips which are still fading out.
+     */
+    private int disappearingChildCount;
+
+    private final ValueAnimator.AnimatorUpdateListener changeUpdateListener =
+            new ValueAnimator.AnimatorUpdateListener() {
+                @Override
+                public void onAnimationUpdate(ValueAnimator animation) {
+                    final float remaining = 1F - animation.getAnimatedFraction();
+                    for (int i = 0; i < animatedChildCount; i++) {
+                        final View child = animatedChildren[i];
+                        child.setTranslationX(animatedFromXs[i] * remaining);
+                        child.setTranslationY(animatedFromYs[i] * remaining);
+                        if (animatedFromAlphas[i] != animatedToAlphas[i]) {
+                            child.setAlpha(animatedToAlphas[i]
+                                    - (animatedToAlphas[i] - animatedFromAlphas[i]) * remaining);
+                        }
+                    }
+                }
+            };
+
+    private final AnimatorListenerAdapter changeAnimatorListener = new AnimatorListenerAdapter() {
+        private boolean isCancelled;
+
+        @Override
+        public void onAnimationStart(Animator animation) {
+            isCancelled = false;
+        }
+
+        @Override
+        public void onAnimationCancel(Animator animation) {
+            isCancelled = true;
+        }
+
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            if (!isCancelled) {
+                finishChangeAnimation();
+            }
+        }
+    };
+
     /**
      * Creates new one from code
      */
@@ -38,7 +373,7 @@ public class ChipLayout extends ViewGroup {
     public ChipLayout(Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
 
-        setWillNotDraw(true);
+        init(context, attrs, defStyleAttr, 0);
     }
 
     /**
@@ -52,149 +387,2109 @@ public class ChipLayout extends ViewGroup {
     public ChipLayout(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
         super(context, attrs, defStyleAttr, defStyleRes);
 
+        init(context, attrs, defStyleAttr, defStyleRes);
+    }
+
+    /**
+     * Initialize current {@link ChipLayout} with attributes from xml
+     */
+    private void init(@NonNull Context context,
+                      @Nullable AttributeSet attrs,
+                      int defStyleAttr,
+                      int defStyleRes) {
+        TypedArray ta = context.obtainStyledAttributes(attrs, R.styleable.ChipLayout,
+                defStyleAttr, defStyleRes);
+
+        maxRows = ta.getInt(R.styleable.ChipLayout_cl_max_rows, NO_MAX_ROWS);
+        wrapMode = ta.getInt(R.styleable.ChipLayout_cl_wrap_mode, WRAP_GREEDY);
+        balancedWrapMaxItems = ta.getInt(R.styleable.ChipLayout_cl_balanced_wrap_max_items,
+                DEFAULT_BALANCED_WRAP_MAX_ITEMS);
+
+        final int overflowStyleRes = ta.getResourceId(R.styleable.ChipLayout_cl_overflow_chip_style, 0);
+        if (overflowStyleRes != 0) {
+            final int overflowMargin =
+                    ta.getDimensionPixelSize(R.styleable.ChipLayout_cl_overflow_chip_margin, 0);
+            overflowChip = new OverflowChip(ChipStyle.fromStyle(context, overflowStyleRes, overflowMargin));
+            updateAccessibilityHelper();
+        }
+
+        isChangeAnimationEnabled = ta.getBoolean(R.styleable.ChipLayout_cl_animate_changes, false);
+
+        ta.recycle();
+
+        changeAnimationDuration = getResources().getInteger(android.R.integer.config_shortAnimTime);
+        changeAnimator.setInterpolator(new DecelerateInterpolator());
+        changeAnimator.addUpdateListener(changeUpdateListener);
+        changeAnimator.addListener(changeAnimatorListener);
+
         setWillNotDraw(true);
     }
 
     /**
-     * {@inheritDoc}
+     * Enables animations of chips when children are added, removed or reflowed.
+     * Positions are computed once per layout pass, then chips are only translated
+     * until they reach their places, so animations cause no further layout passes.
+     * Interrupted animations continue from the current positions.
+     * Removed chips fade out only when removed by {@link #setItems(List, int, int)}.
+     * Applies only to regular children, adapter and flat modes are not animated.
+     * @param isEnabled true to animate changes
      */
-    @Override
-    protected boolean checkLayoutParams(LayoutParams p) {
-        return p instanceof LinearLayout.LayoutParams;
+    public void setChangeAnimationsEnabled(boolean isEnabled) {
+        if (isChangeAnimationEnabled == isEnabled) {
+            return;
+        }
+
+        isChangeAnimationEnabled = isEnabled;
+        if (!isEnabled) {
+            stopChangeAnimation();
+        }
     }
 
     /**
-     * {@inheritDoc}
+     * @return true if changes of children are animated
      */
-    @Override
-    public LayoutParams generateLayoutParams(AttributeSet attrs) {
-        return new LinearLayout.LayoutParams(getContext(), attrs);
+    public boolean isChangeAnimationsEnabled() {
+        return isChangeAnimationEnabled;
     }
 
     /**
-     * {@inheritDoc}
+     * Sets duration of change animations
+     * @param duration duration in milliseconds
      */
-    @Override
-    protected LayoutParams generateLayoutParams(LayoutParams p) {
-        return new LinearLayout.LayoutParams(p);
+    public void setChangeAnimationDuration(@IntRange(from = 0) long duration) {
+        changeAnimationDuration = duration;
     }
 
     /**
-     * {@inheritDoc}
+     * Limits amount of rows taken by child views.
+     * Children which do not fit are neither measured, laid out nor drawn.
+     * Applies only to regular children, adapter and flat modes are not limited.
+     * @param maxRows max amount of rows or {@link #NO_MAX_ROWS}
      */
-    @Override
-    protected LayoutParams generateDefaultLayoutParams() {
-        return new LinearLayout.LayoutParams(LayoutParams.WRAP_CONTENT,
-                LayoutParams.WRAP_CONTENT);
+    public void setMaxRows(@IntRange(from = 0) int maxRows) {
+        if (this.maxRows == maxRows) {
+            return;
+        }
+
+        this.maxRows = maxRows;
+        measuredChildCount = UNKNOWN_SIZE;
+        requestLayout();
+        invalidate();
     }
 
     /**
-     * {@inheritDoc}
+     * @return max amount of rows taken by child views or {@link #NO_MAX_ROWS}
      */
-    @Override
-    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-        int childCount = getChildCount();
-        final int preMeasuredWidth = MeasureSpec.getSize(widthMeasureSpec)
-                - getPaddingLeft() - getPaddingRight();
+    public int getMaxRows() {
+        return maxRows;
+    }
 
-        int childState = 0;
+    /**
+     * Sets how chips are wrapped into rows.
+     * Balanced wrapping costs more than greedy one, so it falls back to greedy
+     * for more than {@link #setBalancedWrapMaxItems(int)} chips. Rows limited by
+     * {@link #setMaxRows(int)} and adapter items are always wrapped greedily.
+     * @param wrapMode either {@link #WRAP_GREEDY} or {@link #WRAP_BALANCED}
+     */
+    public void setWrapMode(int wrapMode) {
+        if (this.wrapMode == wrapMode) {
+            return;
+        }
 
-        int width = 0;
-        int height = 0;
+        this.wrapMode = wrapMode;
+        measuredChildCount = UNKNOWN_SIZE;
+        requestLayout();
+    }
 
-        int currentRowWidth = 0;
+    /**
+     * @return either {@link #WRAP_GREEDY} or {@link #WRAP_BALANCED}
+     */
+    public int getWrapMode() {
+        return wrapMode;
+    }
 
-        for (int i = 0; i < childCount; i++) {
-            final View child = getChildAt(i);
-            final LinearLayout.LayoutParams params = getChildLayoutParams(child);
+    /**
+     * Sets max amount of chips wrapped in the balanced mode, above it chips are wrapped greedily
+     * @param maxItems max amount of chips
+     */
+    public void setBalancedWrapMaxItems(@IntRange(from = 0) int maxItems) {
+        if (balancedWrapMaxItems == maxItems) {
+            return;
+        }
 
-            if (child.getVisibility() == GONE) continue;
+        balancedWrapMaxItems = maxItems;
+        if (wrapMode == WRAP_BALANCED) {
+            measuredChildCount = UNKNOWN_SIZE;
+            requestLayout();
+        }
+    }
 
-            int horizontalMargins = params.leftMargin + params.rightMargin;
-            int verticalMargins = params.topMargin + params.bottomMargin;
-            measureChildWithMargins(child,
-                    widthMeasureSpec, 0, heightMeasureSpec, 0);
+    /**
+     * Sets style of the "+N" chip shown at the end of the last row
+     * when some children did not fit into {@link #setMaxRows(int) max rows}.
+     * @param style appearance of the chip or null to not show it
+     */
+    public void setOverflowChipStyle(@Nullable ChipStyle style) {
+        if (overflowChip != null && style != null && overflowChip.getStyle() == style) {
+            return;
+        }
 
-            width += Math.max(width, child.getMeasuredWidth() + horizontalMargins);
-            currentRowWidth += child.getMeasuredWidth() + horizontalMargins;
+        overflowChip = style == null ? null : new OverflowChip(style);
+        isOverflowChipPressed = false;
+        updateAccessibilityHelper();
+        requestLayout();
+        invalidate();
+    }
 
-            if (currentRowWidth > preMeasuredWidth) {
-                height += child.getMeasuredHeight() + verticalMargins;
-                currentRowWidth = child.getMeasuredWidth() + horizontalMargins;
-            } else {
-                height = Math.max(height, child.getMeasuredHeight() + verticalMargins);
+    /**
+     * Switches layout to the virtualized mode.
+     * In this mode children are managed by the layout itself:
+     * only chips from the visible rows are bound and attached,
+     * views of rows scrolled away are recycled.
+     * @param adapter a source of chips or null to get back to the regular mode
+     */
+    public void setAdapter(@Nullable ChipAdapter adapter) {
+        if (this.adapter != null) {
+            this.adapter.unregisterDataSetObserver(adapterObserver);
+        }
+
+        this.adapter = adapter;
+        cancelTagsRequest();
+        clearTextChips();
+        removeAllViews();
+        Arrays.fill(measuredChildren, null);
+        measuredChildCount = UNKNOWN_SIZE;
+        scrapViews.clear();
+        firstBoundPosition = 0;
+
+        if (adapter != null) {
+            adapter.registerDataSetObserver(adapterObserver);
+        }
+
+        onAdapterDataChanged();
+    }
+
+    /**
+     * @return current adapter or null if layout hosts regular children
+     */
+    @Nullable
+    public ChipAdapter getAdapter() {
+        return adapter;
+    }
+
+    /**
+     * Switches layout to the flat mode.
+     * In this mode chips are not views: all of them are measured,
+     * drawn and hit-tested by the layout itself with one shared style.
+     * Suits read-only chip clouds, use {@link #setOnChipClickListener(OnChipClickListener)}
+     * to be notified about clicks.
+     * @param labels chips labels or null to get back to the regular mode
+     * @param style appearance of all chips
+     */
+    public void setTextChips(@Nullable List<String> labels, @NonNull ChipStyle style) {
+        if (adapter != null) {
+            setAdapter(null);
+        }
+
+        cancelTagsRequest();
+        removeAllViews();
+        Arrays.fill(measuredChildren, null);
+        measuredChildCount = UNKNOWN_SIZE;
+        pressedChip = TextChips.NO_CHIP;
+
+        if (labels == null) {
+            clearTextChips();
+        } else {
+            if (textChips == null || textChips.getStyle() != style) {
+                textChips = new TextChips(style);
             }
+            textChips.setLabels(labels);
 
-            childState = combineMeasuredStates(childState, child.getMeasuredState());
+            updateAccessibilityHelper();
+            chipsAccessibilityHelper.invalidateRoot();
+            setWillNotDraw(false);
         }
 
-        height = Math.max(height, getSuggestedMinimumHeight());
-        width = Math.max(width, getSuggestedMinimumWidth());
+        requestLayout();
+        invalidate();
+    }
 
-        setMeasuredDimension(resolveSizeAndState(width, widthMeasureSpec, childState),
-                resolveSizeAndState(height, heightMeasureSpec,
-                        childState << MEASURED_HEIGHT_STATE_SHIFT));
+    /**
+     * Replaces children with text chips, one per tag.
+     * Labels are shaped on a background thread, so current children stay
+     * until all labels are ready, then new chips are attached at once
+     * with a single layout request.
+     * @param tags chips labels
+     * @param chipTheme theme overlay applied to every chip, for example its text appearance and background
+     * @param chipMargin margin applied to every side of a chip
+     */
+    @MainThread
+    public void setTags(@NonNull List<String> tags, @StyleRes int chipTheme, @Px int chipMargin) {
+        if (adapter != null) {
+            setAdapter(null);
+        }
+
+        cancelTagsRequest();
+        if (textChips != null) {
+            clearTextChips();
+            requestLayout();
+        }
+
+        final Context chipContext = obtainTagsContext(chipTheme);
+        tagsMargin = chipMargin;
+
+        // chips and prototype share the theme, so precomputed texts match chips text params
+        final TextView prototype = new TextView(chipContext);
+        tagsRequest = ChipTextShaper.shape(tags,
+                TextViewCompat.getTextMetricsParams(prototype), tagsCallback);
     }
 
     /**
-     * {@inheritDoc}
+     * Replaces children with text chips, one per tag, streaming them over several frames.
+     * The first chips are attached right away, so the first rows are shown with the next frame.
+     * The rest are attached in batches sized to fit the frame budget,
+     * which adapts to the measured cost of a chip.
+     * Source is iterated on the main thread, so paged sources should load
+     * their pages ahead of time.
+     * @param tags lazy source of chips labels
+     * @param chipTheme theme overlay applied to every chip, for example its text appearance and background
+     * @param chipMargin margin applied to every side of a chip
      */
-    @Override
-    protected void onLayout(boolean changed, int l, int t, int r, int b) {
-        final int childCount = getChildCount();
+    @MainThread
+    public void streamTags(@NonNull Iterator<String> tags, @StyleRes int chipTheme, @Px int chipMargin) {
+        if (adapter != null) {
+            setAdapter(null);
+        }
 
-        final int layoutLeft = getPaddingLeft();
-        final int layoutRight = getMeasuredWidth() - getPaddingRight();
-        final int layoutTop = getPaddingTop();
-        final int layoutBottom = getMeasuredHeight() - getPaddingBottom();
-        final int layoutWidth = layoutRight - layoutLeft;
-        final int layoutHeight = layoutTop - layoutBottom;
+        cancelTagsRequest();
+        if (textChips != null) {
+            clearTextChips();
+        }
 
-        int maxHeight = 0;
+        obtainTagsContext(chipTheme);
+        tagsMargin = chipMargin;
 
-        int width, height;
-        int left = layoutLeft;
-        int top = layoutTop;
+        removeAllViewsInLayout();
+        Arrays.fill(measuredChildren, null);
+        measuredChildCount = UNKNOWN_SIZE;
 
-        for (int i = 0; i < childCount; i++) {
-            View child = getChildAt(i);
-            final LinearLayout.LayoutParams params = getChildLayoutParams(child);
+        tagsStream = tags;
+        tagsBudget.reset();
+        updateRefreshRate();
+        attachStreamedTags(tagsBudget.nextBatchSize(System.nanoTime()));
+    }
 
-            if (child.getVisibility() == GONE) continue;
+    /**
+     * Attaches next chips of the streamed tags and schedules the following batch if there are more.
+     * @param batchSize max amount of chips to attach
+     */
+    private void attachStreamedTags(@IntRange(from = 1) int batchSize) {
+        final Iterator<String> stream = tagsStream;
+        if (stream == null || tagsContext == null) {
+            return;
+        }
 
-            child.measure(MeasureSpec.makeMeasureSpec(layoutWidth, MeasureSpec.AT_MOST),
-                    MeasureSpec.makeMeasureSpec(layoutHeight, MeasureSpec.AT_MOST));
+        final boolean isTracing = Instrumentation.isTracingEnabled();
+        if (isTracing) {
+            TraceCompat.beginSection("ChipLayout#attachStreamedTags");
+        }
 
-            width = child.getMeasuredWidth() + params.leftMargin + params.rightMargin;
-            height = child.getMeasuredHeight() + params.topMargin + params.bottomMargin;
+        final long startNanos = System.nanoTime();
+        int attachedCount = 0;
 
-            if (left + width >= layoutRight) {
-                left = layoutLeft;
-                top += maxHeight;
-                maxHeight = 0;
+        try {
+            while (attachedCount < batchSize && stream.hasNext()) {
+                final TextView chip = new TextView(tagsContext);
+                chip.setText(stream.next());
+                addViewInLayout(chip, -1, createTagLayoutParams(), true);
+                attachedCount++;
+            }
+        } finally {
+            if (isTracing) {
+                TraceCompat.endSection();
             }
+        }
 
-            child.layout(left + params.leftMargin,
-                    top + params.topMargin,
-                    left + child.getMeasuredWidth() + params.leftMargin,
-                    top + child.getMeasuredHeight() + params.topMargin);
+        tagsBudget.onBatchDone(attachedCount, System.nanoTime() - startNanos);
 
-            if (maxHeight < height)
-                maxHeight = height;
+        if (stream.hasNext()) {
+            postTagsFrame();
+        } else {
+            tagsStream = null;
+        }
 
-            left += width;
+        if (attachedCount > 0) {
+            requestLayout();
+            invalidate();
         }
     }
 
     /**
-     * Returns layout params from child if exists or generates new one otherwise
-     * @param child a view from this view group
-     * @return layout params for child view
+     * Schedules the next batch of streamed tags, batches are paused while layout is detached.
      */
-    @NonNull
-    private LinearLayout.LayoutParams getChildLayoutParams(@NonNull View child) {
-        final ViewGroup.LayoutParams params = child.getLayoutParams();
-        return (LinearLayout.LayoutParams) (checkLayoutParams(params)
-                ? params : generateDefaultLayoutParams());
+    private void postTagsFrame() {
+        if (isTagsFramePosted || !ViewCompat.isAttachedToWindow(this)) {
+            return;
+        }
+
+        Choreographer.getInstance().postFrameCallback(tagsFrameCallback);
+        isTagsFramePosted = true;
+    }
+
+    private void removeTagsFrame() {
+        if (isTagsFramePosted) {
+            Choreographer.getInstance().removeFrameCallback(tagsFrameCallback);
+            isTagsFramePosted = false;
+        }
+    }
+
+    /**
+     * Sizes frame budget after the display which shows layout, if it is known.
+     */
+    private void updateRefreshRate() {
+        final Display display = ViewCompat.getDisplay(this);
+        if (display != null) {
+            tagsBudget.setRefreshRate(display.getRefreshRate());
+        }
+    }
+
+    /**
+     * Replaces children with chips showing already shaped texts.
+     * Children are attached in layout, so there is only one layout request for all of them.
+     */
+    private void attachTags(@NonNull List<PrecomputedTextCompat> texts) {
+        if (tagsContext == null) {
+            return;
+        }
+
+        removeAllViewsInLayout();
+        Arrays.fill(measuredChildren, null);
+        measuredChildCount = UNKNOWN_SIZE;
+
+        for (int i = 0; i < texts.size(); i++) {
+            final TextView chip = new TextView(tagsContext);
+            TextViewCompat.setPrecomputedText(chip, texts.get(i));
+            addViewInLayout(chip, -1, createTagLayoutParams(), true);
+        }
+
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Updates children to show the given items.
+     * Views of items which ids are still present are kept and rebound,
+     * only inserted items get new views. Kept views are reordered with the minimal
+     * amount of moves, so layout reflows only from the first changed position.
+     * @param items chips to show, ids should be unique
+     * @param chipTheme theme overlay applied to every chip, for example its text appearance and background
+     * @param chipMargin margin applied to every side of a chip
+     */
+    @MainThread
+    public void setItems(@NonNull List<ChipItem> items, @StyleRes int chipTheme, @Px int chipMargin) {
+        if (adapter != null) {
+            setAdapter(null);
+        }
+
+        cancelTagsRequest();
+        if (textChips != null) {
+            clearTextChips();
+        }
+
+        if (tagsContext != null && tagsTheme != chipTheme) {
+            // views styled with the previous theme could not be reused
+            removeAllViewsInLayout();
+        }
+
+        final Context chipContext = obtainTagsContext(chipTheme);
+        final boolean isMarginChanged = chipMargin != tagsMargin;
+        tagsMargin = chipMargin;
+
+        final int itemCount = items.size();
+        final Map<Long, Integer> newPositions = new HashMap<>(itemCount * 2);
+        for (int i = 0; i < itemCount; i++) {
+            newPositions.put(items.get(i).getId(), i);
+        }
+
+        // removes views of items which are gone, duplicated views and views which have not been created for items
+        final Set<Long> keptIds = new HashSet<>(itemCount * 2);
+        for (int i = getChildCount() - 1; i >= 0; i--) {
+            final Object item = getChildAt(i).getTag(R.id.cl_chip_item);
+            if (!(item instanceof ChipItem)
+                    || !newPositions.containsKey(((ChipItem) item).getId())
+                    || !keptIds.add(((ChipItem) item).getId())) {
+                removeChipInLayout(getChildAt(i));
+            }
+        }
+
+        final int keptCount = getChildCount();
+        final int[] keptPositions = new int[keptCount];
+        final boolean[] isStable = new boolean[keptCount];
+        final View[] views = new View[itemCount];
+
+        for (int i = 0; i < keptCount; i++) {
+            final View child = getChildAt(i);
+            final int position = newPositions.get(((ChipItem) child.getTag(R.id.cl_chip_item)).getId());
+            keptPositions[i] = position;
+            views[position] = child;
+        }
+
+        // views out of the longest increasing run of positions have to be moved
+        ChipDiff.markLongestIncreasing(keptPositions, keptCount, isStable);
+        for (int i = keptCount - 1; i >= 0; i--) {
+            if (!isStable[i]) {
+                detachViewFromParent(i);
+            }
+        }
+
+        for (int i = 0; i < itemCount; i++) {
+            final ChipItem item = items.get(i);
+            View view = views[i];
+
+            if (view == null) {
+                view = new TextView(chipContext);
+                bindItem((TextView) view, item);
+                addViewInLayout(view, i, createTagLayoutParams(), true);
+                continue;
+            }
+
+            bindItem((TextView) view, item);
+            if (isMarginChanged) {
+                view.setLayoutParams(createTagLayoutParams());
+            }
+
+            if (view.getParent() == null) {
+                attachViewToParent(view, i, view.getLayoutParams());
+            }
+        }
+
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Removes chip, fading it out if changes are animated
+     */
+    private void removeChipInLayout(@NonNull final View child) {
+        if (!isChangeAnimationEnabled || !ViewCompat.isLaidOut(this)
+                || child.getWidth() == 0 || child.getHeight() == 0) {
+            removeViewInLayout(child);
+            return;
+        }
+
+        // alpha set by the app is restored once the chip is gone, so it could be added again
+        final float alpha = stopAlphaAnimation(child);
+
+        // transitioning child is still drawn by the parent until transition ends
+        startViewTransition(child);
+        removeViewInLayout(child);
+        disappearingChildCount++;
+
+        child.animate()
+                .alpha(0F)
+                .setDuration(changeAnimationDuration)
+                .setListener(new AnimatorListenerAdapter() {
+                    @Override
+                    public void onAnimationEnd(Animator animation) {
+                        child.animate().setListener(null);
+                        child.setAlpha(alpha);
+                        endViewTransition(child);
+                        disappearingChildCount--;
+                        invalidate();
+                    }
+                });
+    }
+
+    /**
+     * Shows item in the chip view, text is updated only if it has changed.
+     */
+    private void bindItem(@NonNull TextView view, @NonNull ChipItem item) {
+        final Object previous = view.getTag(R.id.cl_chip_item);
+        if (!(previous instanceof ChipItem)
+                || !((ChipItem) previous).getLabel().equals(item.getLabel())) {
+            view.setText(item.getLabel());
+        }
+        view.setTag(R.id.cl_chip_item, item);
+    }
+
+    /**
+     * @return context for chips with the given theme, reused while theme stays the same
+     */
+    @NonNull
+    private Context obtainTagsContext(@StyleRes int chipTheme) {
+        if (tagsContext == null || tagsTheme != chipTheme) {
+            tagsContext = new ContextThemeWrapper(getContext(), chipTheme);
+            tagsTheme = chipTheme;
+        }
+        return tagsContext;
+    }
+
+    @NonNull
+    private LinearLayout.LayoutParams createTagLayoutParams() {
+        final LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(
+                LayoutParams.WRAP_CONTENT,
+                LayoutParams.WRAP_CONTENT);
+        params.setMargins(tagsMargin, tagsMargin, tagsMargin, tagsMargin);
+        return params;
+    }
+
+    /**
+     * Cancels tags shaping or streaming if it is in progress
+     */
+    private void cancelTagsRequest() {
+        if (tagsRequest != null) {
+            tagsRequest.cancel();
+            tagsRequest = null;
+        }
+
+        tagsStream = null;
+        removeTagsFrame();
+    }
+
+    /**
+     * Leaves the flat mode if layout is in it.
+     */
+    private void clearTextChips() {
+        if (textChips == null) {
+            return;
+        }
+
+        textChips = null;
+        pressedChip = TextChips.NO_CHIP;
+        updateAccessibilityHelper();
+        setWillNotDraw(true);
+    }
+
+    /**
+     * Installs accessibility helper while there are chips drawn without child views,
+     * ie text chips or the overflow chip, and removes it otherwise.
+     */
+    private void updateAccessibilityHelper() {
+        final boolean hasVirtualChips = textChips != null || overflowChip != null;
+        if (hasVirtualChips && chipsAccessibilityHelper == null) {
+            chipsAccessibilityHelper = new ChipsAccessibilityHelper(this);
+            ViewCompat.setAccessibilityDelegate(this, chipsAccessibilityHelper);
+        } else if (!hasVirtualChips && chipsAccessibilityHelper != null) {
+            chipsAccessibilityHelper = null;
+            ViewCompat.setAccessibilityDelegate(this, null);
+        }
+    }
+
+    /**
+     * Sets listener for clicks on chips drawn in the flat mode
+     * @param listener is a callback or null to stop listening
+     */
+    public void setOnChipClickListener(@Nullable OnChipClickListener listener) {
+        this.onChipClickListener = listener;
+    }
+
+    /**
+     * Sets listener for clicks on the "+N" chip shown instead of the chips
+     * which did not fit into {@link #setMaxRows(int) max rows}
+     */
+    public void setOnOverflowChipClickListener(@Nullable OnOverflowChipClickListener listener) {
+        this.onOverflowChipClickListener = listener;
+        if (listener == null) {
+            isOverflowChipPressed = false;
+        }
+        if (chipsAccessibilityHelper != null) {
+            chipsAccessibilityHelper.invalidateVirtualView(OVERFLOW_CHIP_VIRTUAL_ID);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getViewTreeObserver().addOnScrollChangedListener(scrollChangedListener);
+
+        if (tagsStream != null) {
+            updateRefreshRate();
+            postTagsFrame();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onDetachedFromWindow() {
+        getViewTreeObserver().removeOnScrollChangedListener(scrollChangedListener);
+        removeCallbacks(reflowRunnable);
+        removeTagsFrame();
+        stopChangeAnimation();
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean checkLayoutParams(LayoutParams p) {
+        return p instanceof LinearLayout.LayoutParams;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LayoutParams generateLayoutParams(AttributeSet attrs) {
+        return new LinearLayout.LayoutParams(getContext(), attrs);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected LayoutParams generateLayoutParams(LayoutParams p) {
+        return new LinearLayout.LayoutParams(p);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected LayoutParams generateDefaultLayoutParams() {
+        return new LinearLayout.LayoutParams(LayoutParams.WRAP_CONTENT,
+                LayoutParams.WRAP_CONTENT);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final boolean isTracing = Instrumentation.isTracingEnabled();
+        if (isTracing) {
+            TraceCompat.beginSection("ChipLayout#onMeasure");
+        }
+
+        final Instrumentation.Listener listener = Instrumentation.getListener();
+        // streamed batches are sized after their measure cost too
+        final long startNanos = tagsStream != null ? System.nanoTime() : Instrumentation.startTime(listener);
+        childrenMeasuredInPass = 0;
+
+        try {
+            measureChips(widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            if (isTracing) {
+                TraceCompat.endSection();
+            }
+        }
+
+        if (tagsStream != null) {
+            tagsBudget.onBatchMeasured(Instrumentation.elapsedSince(startNanos));
+        }
+
+        if (listener != null) {
+            listener.onChipLayoutMeasured(childrenMeasuredInPass, lineBreaker.getRowCount(),
+                    Instrumentation.elapsedSince(startNanos));
+        }
+    }
+
+    /**
+     * Measures chips of the current mode and sets measured dimension.
+     */
+    private void measureChips(int widthMeasureSpec, int heightMeasureSpec) {
+        final int horizontalPadding = getPaddingLeft() + getPaddingRight();
+        final int verticalPadding = getPaddingTop() + getPaddingBottom();
+        final boolean isConstraintChanged = widthMeasureSpec != lastWidthMeasureSpec
+                || heightMeasureSpec != lastHeightMeasureSpec
+                || horizontalPadding != lastHorizontalPadding
+                || verticalPadding != lastVerticalPadding;
+
+        lastWidthMeasureSpec = widthMeasureSpec;
+        lastHeightMeasureSpec = heightMeasureSpec;
+        lastHorizontalPadding = horizontalPadding;
+        lastVerticalPadding = verticalPadding;
+
+        final int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+        final int maxRowWidth = widthMode == MeasureSpec.UNSPECIFIED
+                ? Integer.MAX_VALUE
+                : MeasureSpec.getSize(widthMeasureSpec) - horizontalPadding;
+
+        visibleChildCount = Integer.MAX_VALUE;
+        isOverflowChipShown = false;
+
+        if (adapter != null) {
+            measuredChildCount = UNKNOWN_SIZE;
+            measureAdapterItems(adapter, widthMeasureSpec, heightMeasureSpec, maxRowWidth);
+            return;
+        }
+
+        if (textChips != null) {
+            final int chipsCount = textChips.getCount();
+            ensureCapacity(chipsCount);
+            textChips.getSizes(childWidths, childHeights);
+            breakRows(chipsCount, maxRowWidth);
+            setMeasuredDimensionFromRows(widthMeasureSpec, heightMeasureSpec, 0);
+            return;
+        }
+
+        if (maxRows != NO_MAX_ROWS) {
+            measuredChildCount = UNKNOWN_SIZE;
+            measureChildrenInRows(widthMeasureSpec, heightMeasureSpec, maxRowWidth);
+        } else if (isConstraintChanged || measuredChildCount == UNKNOWN_SIZE) {
+            measureAllChildren(widthMeasureSpec, heightMeasureSpec, maxRowWidth);
+        } else {
+            measureDirtyChildren(widthMeasureSpec, heightMeasureSpec, maxRowWidth);
+        }
+
+        setMeasuredDimensionFromRows(widthMeasureSpec, heightMeasureSpec, measuredChildState);
+    }
+
+    /**
+     * Measures children only until they fill {@link #maxRows}
+     * and breaks measured ones into rows. Follows the same wrapping rule
+     * as {@link FlowLineBreaker}, so the first child which would start an extra row
+     * is the last measured one. Makes room for the overflow chip on the last row if needed.
+     */
+    private void measureChildrenInRows(int widthMeasureSpec,
+                                       int heightMeasureSpec,
+                                       int maxRowWidth) {
+        final int childCount = getChildCount();
+        ensureCapacity(childCount + 1);
+
+        int childState = 0;
+        int rows = 0;
+        int rowWidth = 0;
+        int lastRowStart = 0;
+        int visible = 0;
+
+        if (maxRows > 0) {
+            for (; visible < childCount; visible++) {
+                final View child = getChildAt(visible);
+                measureChildAt(child, visible, widthMeasureSpec, heightMeasureSpec);
+
+                final int childWidth = childWidths[visible];
+                if (childWidth == FlowLineBreaker.SKIP) {
+                    continue;
+                }
+
+                if (rows == 0 || rowWidth + childWidth > maxRowWidth) {
+                    if (rows == maxRows) {
+                        break;
+                    }
+
+                    rows++;
+                    rowWidth = 0;
+                    lastRowStart = visible;
+                }
+
+                rowWidth += childWidth;
+                childState = combineMeasuredStates(childState, child.getMeasuredState());
+            }
+        }
+
+        int hiddenCount = 0;
+        for (int i = visible; i < childCount; i++) {
+            if (getChildAt(i).getVisibility() != GONE) {
+                hiddenCount++;
+            }
+        }
+
+        if (hiddenCount > 0 && overflowChip != null && maxRows > 0) {
+            overflowChip.setHiddenCount(hiddenCount);
+
+            // the overflow chip replaces trailing chips of the last row until it fits
+            while (visible > lastRowStart && rowWidth + overflowChip.getOuterWidth() > maxRowWidth) {
+                visible--;
+                if (childWidths[visible] != FlowLineBreaker.SKIP) {
+                    rowWidth -= childWidths[visible];
+                    overflowChip.setHiddenCount(++hiddenCount);
+                }
+            }
+
+            childWidths[visible] = overflowChip.getOuterWidth();
+            childHeights[visible] = overflowChip.getOuterHeight();
+            isOverflowChipShown = true;
+        }
+
+        visibleChildCount = visible;
+        measuredChildState = childState;
+        lineBreaker.breakLines(childWidths, childHeights,
+                isOverflowChipShown ? visible + 1 : visible, maxRowWidth);
+    }
+
+    /**
+     * Measures every child and breaks all of them into rows from scratch.
+     */
+    private void measureAllChildren(int widthMeasureSpec,
+                                    int heightMeasureSpec,
+                                    int maxRowWidth) {
+        final int childCount = getChildCount();
+        ensureCapacity(childCount);
+
+        int childState = 0;
+
+        for (int i = 0; i < childCount; i++) {
+            final View child = getChildAt(i);
+            measureChildAt(child, i, widthMeasureSpec, heightMeasureSpec);
+            childState = combineMeasuredStates(childState, child.getMeasuredState());
+        }
+
+        rememberChildren(childCount, childState);
+        breakRows(childCount, maxRowWidth);
+    }
+
+    /**
+     * Breaks measured sizes into rows according to the wrap mode.
+     */
+    private void breakRows(int count, int maxRowWidth) {
+        if (isBalancedWrap(count)) {
+            lineBreaker.breakLinesBalanced(childWidths, childHeights, count, maxRowWidth);
+        } else {
+            lineBreaker.breakLines(childWidths, childHeights, count, maxRowWidth);
+        }
+    }
+
+    private boolean isBalancedWrap(int count) {
+        return wrapMode == WRAP_BALANCED && count <= balancedWrapMaxItems;
+    }
+
+    /**
+     * Measures only children which were added or requested layout
+     * since the last pass and rebreaks rows starting from the first changed one.
+     * Skips line breaking at all if no child has changed its size.
+     */
+    private void measureDirtyChildren(int widthMeasureSpec,
+                                      int heightMeasureSpec,
+                                      int maxRowWidth) {
+        final int childCount = getChildCount();
+        final int previousCount = measuredChildCount;
+        final int commonCount = Math.min(childCount, previousCount);
+
+        int prefix = 0;
+        while (prefix < commonCount && isChildClean(prefix, prefix)) {
+            prefix++;
+        }
+
+        if (prefix == childCount && childCount == previousCount) {
+            return;
+        }
+
+        int suffix = 0;
+        while (suffix < commonCount - prefix
+                && isChildClean(childCount - 1 - suffix, previousCount - 1 - suffix)) {
+            suffix++;
+        }
+
+        ensureCapacity(childCount);
+
+        final int middleEnd = childCount - suffix;
+        if (childCount != previousCount) {
+            System.arraycopy(childWidths, previousCount - suffix, childWidths, middleEnd, suffix);
+            System.arraycopy(childHeights, previousCount - suffix, childHeights, middleEnd, suffix);
+            System.arraycopy(measuredChildren, previousCount - suffix, measuredChildren, middleEnd, suffix);
+        }
+
+        int dirtyStart = childCount != previousCount ? prefix : middleEnd;
+        int dirtyEnd = childCount != previousCount ? middleEnd : prefix;
+
+        for (int i = prefix; i < middleEnd; i++) {
+            final View child = getChildAt(i);
+            if (childCount == previousCount && isChildClean(i, i)) {
+                continue;
+            }
+
+            final int previousWidth = childWidths[i];
+            final int previousHeight = childHeights[i];
+
+            measureChildAt(child, i, widthMeasureSpec, heightMeasureSpec);
+
+            if (childWidths[i] != previousWidth || childHeights[i] != previousHeight) {
+                dirtyStart = Math.min(dirtyStart, i);
+                dirtyEnd = Math.max(dirtyEnd, i + 1);
+            }
+        }
+
+        int childState = 0;
+        for (int i = 0; i < childCount; i++) {
+            childState = combineMeasuredStates(childState, getChildAt(i).getMeasuredState());
+        }
+
+        rememberChildren(childCount, childState);
+
+        if (childCount != previousCount || dirtyStart < dirtyEnd) {
+            if (isBalancedWrap(childCount)) {
+                // balanced rows depend on every chip, so they could not be rebuilt partially
+                breakRows(childCount, maxRowWidth);
+            } else {
+                lineBreaker.breakLines(childWidths, childHeights, childCount, maxRowWidth,
+                        dirtyStart, Math.max(dirtyStart, dirtyEnd));
+            }
+        }
+    }
+
+    /**
+     * Measures child and stores its outer size.
+     * Gone children are stored as {@link FlowLineBreaker#SKIP}.
+     */
+    private void measureChildAt(@NonNull View child,
+                                int index,
+                                int widthMeasureSpec,
+                                int heightMeasureSpec) {
+        if (child.getVisibility() == GONE) {
+            childWidths[index] = FlowLineBreaker.SKIP;
+            childHeights[index] = 0;
+            return;
+        }
+
+        final LinearLayout.LayoutParams params = getChildLayoutParams(child);
+        measureChildWithMargins(child,
+                widthMeasureSpec, 0, heightMeasureSpec, 0);
+        childrenMeasuredInPass++;
+
+        childWidths[index] = child.getMeasuredWidth() + params.leftMargin + params.rightMargin;
+        childHeights[index] = child.getMeasuredHeight() + params.topMargin + params.bottomMargin;
+    }
+
+    /**
+     * Checks that child at the given index is the same view which has been measured
+     * at the previous index during the last pass and it has not requested layout since then.
+     * Gone children are never laid out, so their layout requests are ignored.
+     */
+    private boolean isChildClean(int index, int previousIndex) {
+        final View child = getChildAt(index);
+        if (child != measuredChildren[previousIndex]) {
+            return false;
+        }
+
+        final boolean wasGone = childWidths[previousIndex] == FlowLineBreaker.SKIP;
+        if (child.getVisibility() == GONE) {
+            return wasGone;
+        }
+
+        return !wasGone && !child.isLayoutRequested();
+    }
+
+    /**
+     * Stores children of the just finished measure pass.
+     */
+    private void rememberChildren(int childCount, int childState) {
+        for (int i = 0; i < childCount; i++) {
+            measuredChildren[i] = getChildAt(i);
+        }
+
+        if (measuredChildCount > childCount) {
+            Arrays.fill(measuredChildren, childCount, measuredChildCount, null);
+        }
+
+        measuredChildCount = childCount;
+        measuredChildState = childState;
+    }
+
+    /**
+     * Measures adapter items: bound chips are measured for real,
+     * all others take their sizes from cache or adapter estimates.
+     */
+    private void measureAdapterItems(@NonNull ChipAdapter adapter,
+                                     int widthMeasureSpec,
+                                     int heightMeasureSpec,
+                                     int maxRowWidth) {
+        final int itemCount = adapter.getItemCount();
+        ensureCapacity(itemCount);
+        ensureItemsCapacity(itemCount);
+
+        int childState = 0;
+
+        final int childCount = getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            final View child = getChildAt(i);
+            measureChildWithMargins(child,
+                    widthMeasureSpec, 0, heightMeasureSpec, 0);
+            childrenMeasuredInPass++;
+            cacheItemSize(firstBoundPosition + i, child);
+            childState = combineMeasuredStates(childState, child.getMeasuredState());
+        }
+
+        for (int position = 0; position < itemCount; position++) {
+            if (itemWidths[position] == UNKNOWN_SIZE) {
+                childWidths[position] = adapter.estimateWidth(position);
+                childHeights[position] = adapter.estimateHeight(position);
+            } else {
+                childWidths[position] = itemWidths[position];
+                childHeights[position] = itemHeights[position];
+            }
+        }
+
+        lineBreaker.breakLines(childWidths, childHeights, itemCount, maxRowWidth);
+        setMeasuredDimensionFromRows(widthMeasureSpec, heightMeasureSpec, childState);
+    }
+
+    /**
+     * Sets measured dimension from the last line breaking results.
+     */
+    private void setMeasuredDimensionFromRows(int widthMeasureSpec,
+                                              int heightMeasureSpec,
+                                              int childState) {
+        int width = lineBreaker.getWidth() + getPaddingLeft() + getPaddingRight();
+        int height = lineBreaker.getHeight() + getPaddingTop() + getPaddingBottom();
+
+        height = Math.max(height, getSuggestedMinimumHeight());
+        width = Math.max(width, getSuggestedMinimumWidth());
+
+        setMeasuredDimension(resolveSizeAndState(width, widthMeasureSpec, childState),
+                resolveSizeAndState(height, heightMeasureSpec,
+                        childState << MEASURED_HEIGHT_STATE_SHIFT));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        final boolean isTracing = Instrumentation.isTracingEnabled();
+        if (isTracing) {
+            TraceCompat.beginSection("ChipLayout#onLayout");
+        }
+
+        final Instrumentation.Listener listener = Instrumentation.getListener();
+        final long startNanos = Instrumentation.startTime(listener);
+        final int childrenLaidOut;
+
+        try {
+            childrenLaidOut = layoutChips();
+        } finally {
+            if (isTracing) {
+                TraceCompat.endSection();
+            }
+        }
+
+        if (listener != null) {
+            listener.onChipLayoutLaidOut(childrenLaidOut, Instrumentation.elapsedSince(startNanos));
+        }
+
+        final int overflowCount = isOverflowChipShown && overflowChip != null ? overflowChip.getHiddenCount() : 0;
+        if (laidOutOverflowCount != overflowCount) {
+            laidOutOverflowCount = overflowCount;
+            isOverflowChipPressed = false;
+            if (chipsAccessibilityHelper != null) {
+                chipsAccessibilityHelper.invalidateRoot();
+            }
+        }
+    }
+
+    /**
+     * Positions children of the current mode.
+     * @return amount of laid out children
+     */
+    private int layoutChips() {
+        if (adapter != null) {
+            areRowsIndexed = false;
+            bindVisibleRows();
+
+            // rows could have been reflowed since chips were bound, so all of them are placed again
+            final int childCount = Math.min(getChildCount(), lineBreaker.getItemCount() - firstBoundPosition);
+            for (int i = 0; i < childCount; i++) {
+                layoutChild(getChildAt(i), firstBoundPosition + i);
+            }
+            return childCount;
+        }
+
+        final int childCount = Math.min(Math.min(getChildCount(), lineBreaker.getItemCount()),
+                visibleChildCount);
+        final boolean isAnimated = isChangeAnimationEnabled && ViewCompat.isLaidOut(this);
+        if (isAnimated) {
+            captureChildPositions(childCount);
+        } else {
+            stopChangeAnimation();
+        }
+
+        int laidOut = 0;
+        boolean areRowsIndexed = true;
+
+        for (int i = 0; i < childCount; i++) {
+            final View child = getChildAt(i);
+            if (child.getVisibility() == GONE) continue;
+
+            layoutChild(child, i);
+            laidOut++;
+
+            areRowsIndexed &= !isTransformed(child);
+        }
+
+        this.areRowsIndexed = areRowsIndexed;
+        hasTransformedChildren = false;
+        if (isAnimated) {
+            startChangeAnimation(childCount);
+        }
+
+        // children which have just been hidden by max rows should not keep their old bounds,
+        // otherwise they would still receive touches there
+        for (int i = childCount; i < getChildCount(); i++) {
+            final View child = getChildAt(i);
+            if (child.getWidth() != 0 || child.getHeight() != 0) {
+                child.layout(0, 0, 0, 0);
+            }
+        }
+        return laidOut;
+    }
+
+    /**
+     * Remembers where children are drawn right now, including their running animation,
+     * then stops animation and puts children back to their laid out positions.
+     * @param childCount amount of children which will be laid out
+     */
+    private void captureChildPositions(int childCount) {
+        ensureAnimationCapacity(childCount);
+
+        for (int i = 0; i < childCount; i++) {
+            final View child = getChildAt(i);
+            if (child.getWidth() == 0 && child.getHeight() == 0) {
+                previousXs[i] = Float.NaN;
+                previousYs[i] = Float.NaN;
+            } else {
+                previousXs[i] = child.getLeft() + child.getTranslationX();
+                previousYs[i] = child.getTop() + child.getTranslationY();
+            }
+            previousAlphas[i] = child.getAlpha();
+        }
+
+        stopChangeAnimation();
+    }
+
+    /**
+     * Offsets children back to their captured positions and starts animating them to the laid out ones.
+     * New children fade in up to their own alpha, children which were fading in continue from
+     * the captured alpha. Rows index is not used until animation ends.
+     * @param childCount amount of laid out children
+     */
+    private void startChangeAnimation(int childCount) {
+        int count = 0;
+
+        for (int i = 0; i < childCount; i++) {
+            final View child = getChildAt(i);
+            if (child.getVisibility() == GONE) continue;
+
+            final float fromX;
+            final float fromY;
+            final float fromAlpha;
+            // stopped animation has already restored the target alpha
+            final float toAlpha = child.getAlpha();
+            if (Float.isNaN(previousXs[i])) {
+                fromX = 0F;
+                fromY = 0F;
+                fromAlpha = 0F;
+            } else {
+                fromX = previousXs[i] - child.getLeft();
+                fromY = previousYs[i] - child.getTop();
+                fromAlpha = previousAlphas[i];
+            }
+
+            if (fromX == 0F && fromY == 0F && fromAlpha == toAlpha) continue;
+
+            animatedChildren[count] = child;
+            animatedFromXs[count] = fromX;
+            animatedFromYs[count] = fromY;
+            animatedFromAlphas[count] = fromAlpha;
+            animatedToAlphas[count] = toAlpha;
+            count++;
+
+            child.setTranslationX(fromX);
+            child.setTranslationY(fromY);
+            if (fromAlpha != toAlpha) {
+                child.setAlpha(fromAlpha);
+            }
+        }
+
+        animatedChildCount = count;
+        if (count == 0) {
+            return;
+        }
+
+        areRowsIndexedWhenIdle = areRowsIndexed;
+        areRowsIndexed = false;
+        changeAnimator.setDuration(changeAnimationDuration);
+        changeAnimator.start();
+    }
+
+    /**
+     * Cancels change animation, animated children are put to their laid out positions
+     */
+    private void stopChangeAnimation() {
+        if (animatedChildCount == 0) {
+            return;
+        }
+
+        changeAnimator.cancel();
+        for (int i = 0; i < animatedChildCount; i++) {
+            final View child = animatedChildren[i];
+            // removed children could still be fading out
+            if (child.getParent() == this) {
+                child.setTranslationX(0F);
+                child.setTranslationY(0F);
+                if (animatedFromAlphas[i] != animatedToAlphas[i]) {
+                    child.setAlpha(animatedToAlphas[i]);
+                }
+            }
+            animatedChildren[i] = null;
+        }
+
+        animatedChildCount = 0;
+        areRowsIndexed = areRowsIndexedWhenIdle;
+    }
+
+    /**
+     * Stops change animation of the child alpha, for example before fading it out.
+     * Translation of the child is still animated.
+     * @return alpha the child has been animated to if it was fading in, its current alpha otherwise
+     */
+    private float stopAlphaAnimation(@NonNull View child) {
+        for (int i = 0; i < animatedChildCount; i++) {
+            if (animatedChildren[i] == child) {
+                animatedFromAlphas[i] = animatedToAlphas[i];
+                return animatedToAlphas[i];
+            }
+        }
+        return child.getAlpha();
+    }
+
+    /**
+     * Called once animation has reached its end, children are already at their laid out positions
+     */
+    private void finishChangeAnimation() {
+        Arrays.fill(animatedChildren, 0, animatedChildCount, null);
+        animatedChildCount = 0;
+        areRowsIndexed = areRowsIndexedWhenIdle;
+        invalidate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        final int drawableCount = Math.min(getChildCount(), visibleChildCount);
+
+        int from = 0;
+        int to = 0;
+        boolean isCulled = false;
+        if (canUseRowsIndex(drawableCount) && canvas.getClipBounds(drawClipBounds)) {
+            final int[] rowStarts = lineBreaker.getRowStarts();
+            final int firstRow = lineBreaker.findRowAt(drawClipBounds.top - getPaddingTop());
+            final int lastRow = lineBreaker.findRowAt(drawClipBounds.bottom - getPaddingTop());
+
+            from = Math.min(rowStarts[firstRow], drawableCount);
+            to = Math.min(rowStarts[lastRow + 1], drawableCount);
+            isCulled = areChildrenUntransformed(drawableCount, from, to);
+        }
+
+        if (isCulled) {
+            drawChildren(canvas, from, to);
+        } else if (drawableCount < getChildCount() && disappearingChildCount == 0) {
+            drawChildren(canvas, 0, drawableCount);
+        } else {
+            super.dispatchDraw(canvas);
+        }
+
+        if (isOverflowChipShown && overflowChip != null) {
+            overflowChip.draw(canvas,
+                    getPaddingLeft() + lineBreaker.getXs()[visibleChildCount],
+                    getPaddingTop() + lineBreaker.getYs()[visibleChildCount]);
+        }
+    }
+
+    /**
+     * Checks that children are exactly where rows say they are,
+     * so rows could be used instead of walking every child.
+     * Falls back when drawing order is customized or children could be animated by layout transition
+     * or change animations, as rows index does not know about removed chips which are still fading out.
+     * @param childCount amount of children covered by rows
+     */
+    private boolean canUseRowsIndex(int childCount) {
+        return areRowsIndexed
+                && disappearingChildCount == 0
+                && adapter == null
+                && !isLayoutRequested()
+                && lineBreaker.getRowCount() > 0
+                && lineBreaker.getItemCount() >= childCount
+                && getLayoutTransition() == null
+                && !isChildrenDrawingOrderEnabled();
+    }
+
+    /**
+     * Checks that children still have no transformation nor elevation.
+     * Children could be moved by property animations after layout, rows do not know about it,
+     * so this is checked on every use of rows index and the default path is used if it fails.
+     *
+     * On Api 26 and above transformed children are noticed as they invalidate themselves,
+     * so children are walked only after that, when the default path walking them is used anyway,
+     * until all of them are untransformed again. Below Api 26 there is no such signal,
+     * so only children of the given range are checked and callers check children they use.
+     * @param childCount amount of children covered by rows
+     * @param from index of the first used child
+     * @param to index of the child right after the last used one
+     */
+    private boolean areChildrenUntransformed(int childCount, int from, int to) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && isHardwareAccelerated()) {
+            if (hasTransformedChildren) {
+                hasTransformedChildren = hasTransformedChild(0, childCount);
+            }
+            return !hasTransformedChildren;
+        }
+        return !hasTransformedChild(from, to);
+    }
+
+    /**
+     * @return true if any child of the range has transformation or elevation
+     */
+    private boolean hasTransformedChild(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (isTransformed(getChildAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if child is not drawn exactly at its bounds or could be drawn out of order
+     */
+    private static boolean isTransformed(@NonNull View child) {
+        return !child.getMatrix().isIdentity() || ViewCompat.getZ(child) != 0f;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Property changes of children, like translation or elevation, end up here,
+     * so transformed children are noticed without walking all of them on every frame.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.O)
+    public void onDescendantInvalidated(@NonNull View child, @NonNull View target) {
+        if (child == target && !hasTransformedChildren && isTransformed(child)) {
+            hasTransformedChildren = true;
+        }
+        super.onDescendantInvalidated(child, target);
+    }
+
+    /**
+     * Draws children from the given range in their natural order.
+     */
+    private void drawChildren(@NonNull Canvas canvas, int from, int to) {
+        final boolean isClipped = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && getClipToPadding();
+        final int saveCount = canvas.save();
+        if (isClipped) {
+            canvas.clipRect(getScrollX() + getPaddingLeft(),
+                    getScrollY() + getPaddingTop(),
+                    getScrollX() + getWidth() - getPaddingRight(),
+                    getScrollY() + getHeight() - getPaddingBottom());
+        }
+
+        final long drawingTime = getDrawingTime();
+        for (int i = from; i < to; i++) {
+            final View child = getChildAt(i);
+            if (child.getVisibility() == VISIBLE || child.getAnimation() != null) {
+                drawChild(canvas, child, drawingTime);
+            }
+        }
+
+        canvas.restoreToCount(saveCount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void requestDisallowInterceptTouchEvent(boolean disallowIntercept) {
+        isInterceptDisallowed = disallowIntercept;
+        super.requestDisallowInterceptTouchEvent(disallowIntercept);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Gestures which start on a child are dispatched to it directly:
+     * the child is looked up by binary search over rows instead of walking every child.
+     * All other gestures, including the ones intercepted later, go through the default dispatch.
+     */
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        final int action = event.getActionMasked();
+
+        if (isDispatchingByRows && !onFilterTouchEventForSecurity(event)) {
+            return false;
+        }
+
+        if (action == MotionEvent.ACTION_DOWN) {
+            isInterceptDisallowed = false;
+            rowTouchTarget = null;
+            isDispatchingByRows = false;
+
+            final int childCount = Math.min(getChildCount(), visibleChildCount);
+            if (event.getPointerCount() == 1
+                    && onFilterTouchEventForSecurity(event)
+                    && canUseRowsIndex(childCount)
+                    && areChildrenUntransformed(childCount, 0, 0)
+                    && !onInterceptTouchEvent(event)) {
+                rowTouchTarget = findChildAt((int) event.getX() + getScrollX(),
+                        (int) event.getY() + getScrollY());
+                isDispatchingByRows = rowTouchTarget != null
+                        && dispatchTouchEventToChild(event, rowTouchTarget);
+            }
+
+            if (!isDispatchingByRows) {
+                rowTouchTarget = null;
+                return super.dispatchTouchEvent(event);
+            }
+            return true;
+        }
+
+        if (!isDispatchingByRows || rowTouchTarget == null) {
+            return super.dispatchTouchEvent(event);
+        }
+
+        final View target = rowTouchTarget;
+        if (action == MotionEvent.ACTION_POINTER_DOWN
+                && findChildAt((int) event.getX(event.getActionIndex()) + getScrollX(),
+                        (int) event.getY(event.getActionIndex()) + getScrollY()) != target) {
+            return handOverToDefaultDispatch(event, target);
+        }
+
+        if (!isInterceptDisallowed && onInterceptTouchEvent(event)) {
+            // the rest of the gesture belongs to the layout itself,
+            // the default dispatch has no touch target, so it will handle it that way
+            final MotionEvent cancel = MotionEvent.obtain(event);
+            cancel.setAction(MotionEvent.ACTION_CANCEL);
+            dispatchTouchEventToChild(cancel, target);
+            cancel.recycle();
+
+            isDispatchingByRows = false;
+            rowTouchTarget = null;
+            return true;
+        }
+
+        final boolean isHandled = dispatchTouchEventToChild(event, target);
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            isDispatchingByRows = false;
+            rowTouchTarget = null;
+        }
+        return isHandled;
+    }
+
+    /**
+     * Moves gesture to the default dispatch once another pointer goes down on a different child,
+     * so the default split of pointers between children applies.
+     * Default dispatch has no record of the first pointer, so the first child gets cancel
+     * and the gesture is restarted with a down of the first pointer at its current position.
+     * @param event pointer down event
+     * @param target child which has been receiving the gesture
+     */
+    private boolean handOverToDefaultDispatch(@NonNull MotionEvent event, @NonNull View target) {
+        final MotionEvent cancel = MotionEvent.obtain(event);
+        cancel.setAction(MotionEvent.ACTION_CANCEL);
+        dispatchTouchEventToChild(cancel, target);
+        cancel.recycle();
+
+        isDispatchingByRows = false;
+        rowTouchTarget = null;
+
+        final int firstPointerIndex = event.getActionIndex() == 0 ? 1 : 0;
+        final MotionEvent down = MotionEvent.obtain(event.getDownTime(), event.getEventTime(),
+                MotionEvent.ACTION_DOWN,
+                event.getX(firstPointerIndex), event.getY(firstPointerIndex),
+                event.getMetaState());
+        super.dispatchTouchEvent(down);
+        down.recycle();
+
+        return super.dispatchTouchEvent(event);
+    }
+
+    /**
+     * Looks up for a visible child under the given point using rows.
+     * @param x horizontal offset in the layout content coordinates, ie with scroll
+     * @param y vertical offset in the layout content coordinates, ie with scroll
+     * @return child or null if point is between children or the found child is transformed,
+     * so its bounds are not the ones it is drawn at
+     */
+    @Nullable
+    private View findChildAt(int x, int y) {
+        final int childCount = Math.min(getChildCount(), visibleChildCount);
+        final int row = lineBreaker.findRowAt(y - getPaddingTop());
+        int low = lineBreaker.getRowStarts()[row];
+        int high = Math.min(lineBreaker.getRowStarts()[row + 1], childCount) - 1;
+        if (low > high) {
+            return null;
+        }
+
+        final int[] xs = lineBreaker.getXs();
+        final int contentX = x - getPaddingLeft();
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (xs[mid] <= contentX) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        // gone children share position with their neighbours, so look back for a visible one
+        for (int i = low; i >= lineBreaker.getRowStarts()[row]; i--) {
+            final View child = getChildAt(i);
+            if (child.getVisibility() != VISIBLE) {
+                continue;
+            }
+
+            if (x >= child.getLeft() && x < child.getRight()
+                    && y >= child.getTop() && y < child.getBottom()
+                    && !isTransformed(child)) {
+                return child;
+            }
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * Dispatches event to the child translating it into the child coordinates.
+     */
+    private boolean dispatchTouchEventToChild(@NonNull MotionEvent event, @NonNull View child) {
+        final float offsetX = getScrollX() - child.getLeft();
+        final float offsetY = getScrollY() - child.getTop();
+
+        event.offsetLocation(offsetX, offsetY);
+        final boolean isHandled = child.dispatchTouchEvent(event);
+        event.offsetLocation(-offsetX, -offsetY);
+        return isHandled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (textChips != null) {
+            textChips.draw(canvas, lineBreaker, getPaddingLeft(), getPaddingTop(), pressedChip);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (textChips == null) {
+            return onOverflowChipTouchEvent(event) || super.onTouchEvent(event);
+        }
+
+        final int chip = findTextChipAt(event.getX(), event.getY());
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                setPressedChip(chip);
+                return chip != TextChips.NO_CHIP;
+            case MotionEvent.ACTION_MOVE:
+                if (chip != pressedChip) {
+                    setPressedChip(TextChips.NO_CHIP);
+                }
+                return true;
+            case MotionEvent.ACTION_UP:
+                if (chip != TextChips.NO_CHIP && chip == pressedChip) {
+                    performChipClick(chip);
+                }
+                setPressedChip(TextChips.NO_CHIP);
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                setPressedChip(TextChips.NO_CHIP);
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Tracks a tap on the overflow chip, other gestures are left to the default handling.
+     * @return true if event belongs to the tap
+     */
+    private boolean onOverflowChipTouchEvent(@NonNull MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                isOverflowChipPressed = onOverflowChipClickListener != null
+                        && isOverflowChipAt(event.getX(), event.getY());
+                return isOverflowChipPressed;
+            case MotionEvent.ACTION_MOVE:
+                if (isOverflowChipPressed && !isOverflowChipAt(event.getX(), event.getY())) {
+                    isOverflowChipPressed = false;
+                    return true;
+                }
+                return isOverflowChipPressed;
+            case MotionEvent.ACTION_UP:
+                if (isOverflowChipPressed) {
+                    isOverflowChipPressed = false;
+                    performOverflowChipClick();
+                    return true;
+                }
+                return false;
+            case MotionEvent.ACTION_CANCEL:
+                isOverflowChipPressed = false;
+                return false;
+            default:
+                return isOverflowChipPressed;
+        }
+    }
+
+    /**
+     * @param x horizontal offset relative to the layout
+     * @param y vertical offset relative to the layout
+     * @return true if overflow chip is shown under the given point
+     */
+    private boolean isOverflowChipAt(float x, float y) {
+        return getOverflowChipBounds(chipBounds) && chipBounds.contains((int) x, (int) y);
+    }
+
+    /**
+     * Calculates bounds of the overflow chip relative to the layout
+     * @return false if overflow chip is not shown
+     */
+    private boolean getOverflowChipBounds(@NonNull Rect outBounds) {
+        if (!isOverflowChipShown || overflowChip == null) {
+            outBounds.setEmpty();
+            return false;
+        }
+
+        overflowChip.getChipBounds(getPaddingLeft() + lineBreaker.getXs()[visibleChildCount],
+                getPaddingTop() + lineBreaker.getYs()[visibleChildCount], outBounds);
+        return true;
+    }
+
+    /**
+     * Notifies listener and accessibility services about overflow chip click.
+     */
+    private void performOverflowChipClick() {
+        if (overflowChip == null || onOverflowChipClickListener == null) {
+            return;
+        }
+
+        playSoundEffect(SoundEffectConstants.CLICK);
+        onOverflowChipClickListener.onOverflowChipClick(overflowChip.getHiddenCount());
+
+        if (chipsAccessibilityHelper != null) {
+            chipsAccessibilityHelper.sendEventForVirtualView(OVERFLOW_CHIP_VIRTUAL_ID,
+                    AccessibilityEvent.TYPE_VIEW_CLICKED);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean dispatchHoverEvent(MotionEvent event) {
+        if (chipsAccessibilityHelper != null
+                && chipsAccessibilityHelper.dispatchHoverEvent(event)) {
+            return true;
+        }
+
+        return super.dispatchHoverEvent(event);
+    }
+
+    /**
+     * Looks up for a flat mode chip under the given point.
+     * @param x horizontal offset relative to the layout
+     * @param y vertical offset relative to the layout
+     * @return index of the chip or {@link TextChips#NO_CHIP}
+     */
+    private int findTextChipAt(float x, float y) {
+        if (textChips == null) {
+            return TextChips.NO_CHIP;
+        }
+
+        return textChips.findChipAt(lineBreaker,
+                (int) x - getPaddingLeft(), (int) y - getPaddingTop());
+    }
+
+    /**
+     * Updates pressed flat mode chip and redraws it.
+     */
+    private void setPressedChip(int chip) {
+        if (pressedChip == chip) {
+            return;
+        }
+
+        pressedChip = chip;
+        invalidate();
+    }
+
+    /**
+     * Notifies listener and accessibility services about chip click.
+     */
+    private void performChipClick(int chip) {
+        playSoundEffect(SoundEffectConstants.CLICK);
+
+        if (onChipClickListener != null) {
+            onChipClickListener.onChipClick(chip);
+        }
+
+        if (chipsAccessibilityHelper != null) {
+            chipsAccessibilityHelper.sendEventForVirtualView(chip,
+                    AccessibilityEvent.TYPE_VIEW_CLICKED);
+        }
+    }
+
+    /**
+     * Places child at the position calculated for the given item.
+     * @param child a view to be laid out
+     * @param position an index of the item in the last line breaking results
+     */
+    private void layoutChild(@NonNull View child, int position) {
+        final LinearLayout.LayoutParams params = getChildLayoutParams(child);
+        final int left = getPaddingLeft() + lineBreaker.getXs()[position] + params.leftMargin;
+        final int top = getPaddingTop() + lineBreaker.getYs()[position] + params.topMargin;
+
+        child.layout(left, top,
+                left + child.getMeasuredWidth(),
+                top + child.getMeasuredHeight());
+    }
+
+    /**
+     * Makes bound children match the rows inside the visible window:
+     * recycles chips which left the window and binds the ones which entered it.
+     * Does not request layout unless freshly bound chips differ from their estimates.
+     */
+    private void bindVisibleRows() {
+        final ChipAdapter adapter = this.adapter;
+        final int itemCount = lineBreaker.getItemCount();
+        if (adapter == null || itemCount != adapter.getItemCount()) {
+            return;
+        }
+
+        int start = 0;
+        int end = 0;
+
+        if (lineBreaker.getRowCount() > 0 && getLocalVisibleRect(visibleRect)) {
+            final int overscan = visibleRect.height() / 2;
+            final int firstRow = lineBreaker.findRowAt(visibleRect.top - overscan - getPaddingTop());
+            final int lastRow = lineBreaker.findRowAt(visibleRect.bottom + overscan - getPaddingTop());
+
+            start = lineBreaker.getRowStarts()[firstRow];
+            end = lineBreaker.getRowStarts()[lastRow + 1];
+        }
+
+        int childCount = getChildCount();
+        if (start == firstBoundPosition && end == firstBoundPosition + childCount) {
+            return;
+        }
+
+        while (childCount > 0
+                && (firstBoundPosition < start || firstBoundPosition >= end)) {
+            recycleChildAt(0);
+            firstBoundPosition++;
+            childCount--;
+        }
+
+        while (childCount > 0 && firstBoundPosition + childCount > end) {
+            recycleChildAt(childCount - 1);
+            childCount--;
+        }
+
+        if (childCount == 0) {
+            firstBoundPosition = start;
+        }
+
+        boolean isReflowRequired = false;
+
+        while (firstBoundPosition > start) {
+            firstBoundPosition--;
+            isReflowRequired |= bindChild(adapter, firstBoundPosition, 0);
+        }
+
+        while (firstBoundPosition + getChildCount() < end) {
+            isReflowRequired |= bindChild(adapter,
+                    firstBoundPosition + getChildCount(), getChildCount());
+        }
+
+        if (isReflowRequired) {
+            removeCallbacks(reflowRunnable);
+            post(reflowRunnable);
+        }
+
+        invalidate();
+    }
+
+    /**
+     * Binds adapter item to a recycled or a new view and attaches it.
+     * @return true if measured size differs from the one used for line breaking
+     */
+    private boolean bindChild(@NonNull ChipAdapter adapter, int position, int index) {
+        View child = scrapViews.poll();
+        if (child == null) {
+            child = adapter.createView(this);
+        }
+
+        adapter.bindView(child, position);
+
+        final ViewGroup.LayoutParams params = child.getLayoutParams();
+        addViewInLayout(child, index,
+                checkLayoutParams(params) ? params : generateDefaultLayoutParams(), true);
+
+        measureChildWithMargins(child,
+                lastWidthMeasureSpec, 0, lastHeightMeasureSpec, 0);
+        cacheItemSize(position, child);
+        layoutChild(child, position);
+
+        return itemWidths[position] != childWidths[position]
+                || itemHeights[position] != childHeights[position];
+    }
+
+    /**
+     * Detaches child and keeps its view for further reuse.
+     */
+    private void recycleChildAt(int index) {
+        final View child = getChildAt(index);
+        removeViewInLayout(child);
+        scrapViews.offer(child);
+    }
+
+    /**
+     * Remembers outer size of just measured adapter item.
+     */
+    private void cacheItemSize(int position, @NonNull View child) {
+        final LinearLayout.LayoutParams params = getChildLayoutParams(child);
+        itemWidths[position] = child.getMeasuredWidth() + params.leftMargin + params.rightMargin;
+        itemHeights[position] = child.getMeasuredHeight() + params.topMargin + params.bottomMargin;
+    }
+
+    /**
+     * Drops all cached measurements and rebinds visible chips.
+     */
+    private void onAdapterDataChanged() {
+        final int itemCount = adapter == null ? 0 : adapter.getItemCount();
+
+        while (getChildCount() > 0) {
+            recycleChildAt(getChildCount() - 1);
+        }
+        firstBoundPosition = 0;
+
+        ensureItemsCapacity(itemCount);
+        Arrays.fill(itemWidths, UNKNOWN_SIZE);
+        Arrays.fill(itemHeights, UNKNOWN_SIZE);
+
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Grows sizes storage to fit at least the given amount of children.
+     * Arrays are reused between passes, keep their content and never shrink.
+     * @param childCount amount of children to be positioned
+     */
+    private void ensureCapacity(int childCount) {
+        if (childWidths.length >= childCount) {
+            return;
+        }
+
+        final int capacity = Math.max(childCount, childWidths.length * 2);
+        childWidths = Arrays.copyOf(childWidths, capacity);
+        childHeights = Arrays.copyOf(childHeights, capacity);
+        measuredChildren = Arrays.copyOf(measuredChildren, capacity);
+    }
+
+    /**
+     * Grows change animation buffers to fit at least the given amount of children.
+     */
+    private void ensureAnimationCapacity(int childCount) {
+        if (previousXs.length >= childCount) {
+            return;
+        }
+
+        final int capacity = Math.max(childCount, previousXs.length * 2);
+        previousXs = new float[capacity];
+        previousYs = new float[capacity];
+        previousAlphas = new float[capacity];
+        animatedChildren = Arrays.copyOf(animatedChildren, capacity);
+        animatedFromXs = Arrays.copyOf(animatedFromXs, capacity);
+        animatedFromYs = Arrays.copyOf(animatedFromYs, capacity);
+        animatedFromAlphas = Arrays.copyOf(animatedFromAlphas, capacity);
+        animatedToAlphas = Arrays.copyOf(animatedToAlphas, capacity);
+    }
+
+    /**
+     * Grows adapter items cache to fit at least the given amount of items.
+     * New slots are marked as {@link #UNKNOWN_SIZE}.
+     * @param itemCount amount of adapter items
+     */
+    private void ensureItemsCapacity(int itemCount) {
+        if (itemWidths.length >= itemCount) {
+            return;
+        }
+
+        final int previousCapacity = itemWidths.length;
+        final int capacity = Math.max(itemCount, previousCapacity * 2);
+        itemWidths = Arrays.copyOf(itemWidths, capacity);
+        itemHeights = Arrays.copyOf(itemHeights, capacity);
+        Arrays.fill(itemWidths, previousCapacity, capacity, UNKNOWN_SIZE);
+        Arrays.fill(itemHeights, previousCapacity, capacity, UNKNOWN_SIZE);
+    }
+
+    /**
+     * Returns layout params from child if exists or generates new one otherwise
+     * @param child a view from this view group
+     * @return layout params for child view
+     */
+    @NonNull
+    private LinearLayout.LayoutParams getChildLayoutParams(@NonNull View child) {
+        final ViewGroup.LayoutParams params = child.getLayoutParams();
+        return (LinearLayout.LayoutParams) (checkLayoutParams(params)
+                ? params : generateDefaultLayoutParams());
+    }
+
+    /**
+     * Exposes flat mode chips and the overflow chip to accessibility services as virtual views.
+     * Node provider of the helper replaces the default node of the layout, which lists child views,
+     * so they are listed by the helper itself ahead of the overflow chip.
+     */
+    private final class ChipsAccessibilityHelper extends ExploreByTouchHelper {
+
+        @Nullable
+        private AccessibilityNodeProviderCompat nodeProvider;
+
+        ChipsAccessibilityHelper(@NonNull View host) {
+            super(host);
+        }
+
+        @Override
+        public AccessibilityNodeProviderCompat getAccessibilityNodeProvider(@NonNull View host) {
+            if (nodeProvider != null) {
+                return nodeProvider;
+            }
+
+            final AccessibilityNodeProviderCompat provider = super.getAccessibilityNodeProvider(host);
+            nodeProvider = new AccessibilityNodeProviderCompat() {
+                @Nullable
+                @Override
+                public AccessibilityNodeInfoCompat createAccessibilityNodeInfo(int virtualViewId) {
+                    final AccessibilityNodeInfoCompat node = provider.createAccessibilityNodeInfo(virtualViewId);
+                    if (node != null && virtualViewId == HOST_ID) {
+                        addChildren(node);
+                    }
+                    return node;
+                }
+
+                @Override
+                public boolean performAction(int virtualViewId, int action, @Nullable Bundle arguments) {
+                    return provider.performAction(virtualViewId, action, arguments);
+                }
+
+                @Nullable
+                @Override
+                public AccessibilityNodeInfoCompat findFocus(int focus) {
+                    return provider.findFocus(focus);
+                }
+            };
+            return nodeProvider;
+        }
+
+        /**
+         * Adds visible child views and then the overflow chip to the layout node
+         */
+        private void addChildren(@NonNull AccessibilityNodeInfoCompat node) {
+            // platform omits child views of a view with a node provider, they are not listed twice if it has not
+            if (node.getChildCount() == 0) {
+                final int childCount = Math.min(getChildCount(), visibleChildCount);
+                for (int i = 0; i < childCount; i++) {
+                    final View child = getChildAt(i);
+                    if (child.getVisibility() == VISIBLE) {
+                        node.addChild(child);
+                    }
+                }
+            }
+
+            if (getOverflowChipBounds(chipBounds)) {
+                node.addChild(ChipLayout.this, OVERFLOW_CHIP_VIRTUAL_ID);
+            }
+        }
+
+        @Override
+        protected int getVirtualViewAt(float x, float y) {
+            if (isOverflowChipAt(x, y)) {
+                return OVERFLOW_CHIP_VIRTUAL_ID;
+            }
+
+            final int chip = findTextChipAt(x, y);
+            return chip == TextChips.NO_CHIP ? INVALID_ID : chip;
+        }
+
+        /**
+         * Lists text chips, the overflow chip is added by {@link #addChildren(AccessibilityNodeInfoCompat)}
+         * after child views, as helper does not allow mixing them with virtual views.
+         */
+        @Override
+        protected void getVisibleVirtualViews(List<Integer> virtualViewIds) {
+            if (textChips == null || lineBreaker.getItemCount() != textChips.getCount()) {
+                return;
+            }
+
+            for (int i = 0; i < textChips.getCount(); i++) {
+                virtualViewIds.add(i);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        protected void onPopulateNodeForVirtualView(int virtualViewId,
+                                                    @NonNull AccessibilityNodeInfoCompat node) {
+            if (virtualViewId == OVERFLOW_CHIP_VIRTUAL_ID) {
+                populateOverflowChipNode(node);
+                return;
+            }
+
+            if (textChips == null || virtualViewId >= lineBreaker.getItemCount()) {
+                chipBounds.setEmpty();
+                node.setContentDescription("");
+                node.setBoundsInParent(chipBounds);
+                return;
+            }
+
+            textChips.getChipBounds(lineBreaker, virtualViewId,
+                    getPaddingLeft(), getPaddingTop(), chipBounds);
+            node.setText(textChips.getLabel(virtualViewId));
+            node.setBoundsInParent(chipBounds);
+            node.addAction(AccessibilityNodeInfoCompat.ACTION_CLICK);
+        }
+
+        @Override
+        protected boolean onPerformActionForVirtualView(int virtualViewId,
+                                                        int action,
+                                                        @Nullable Bundle arguments) {
+            if (action != AccessibilityNodeInfoCompat.ACTION_CLICK) {
+                return false;
+            }
+
+            if (virtualViewId == OVERFLOW_CHIP_VIRTUAL_ID) {
+                if (onOverflowChipClickListener == null) {
+                    return false;
+                }
+                performOverflowChipClick();
+            } else {
+                performChipClick(virtualViewId);
+            }
+            return true;
+        }
+
+        /**
+         * Describes overflow chip as "N more", it is clickable only if there is a listener
+         */
+        @SuppressWarnings("deprecation")
+        private void populateOverflowChipNode(@NonNull AccessibilityNodeInfoCompat node) {
+            if (!getOverflowChipBounds(chipBounds)) {
+                node.setContentDescription("");
+                node.setBoundsInParent(chipBounds);
+                return;
+            }
+
+            final int hiddenCount = overflowChip.getHiddenCount();
+            node.setContentDescription(getResources().getQuantityString(
+                    R.plurals.chip_layout_overflow_description, hiddenCount, hiddenCount));
+            node.setBoundsInParent(chipBounds);
+            if (onOverflowChipClickListener != null) {
+                node.addAction(AccessibilityNodeInfoCompat.ACTION_CLICK);
+            }
+        }
     }
 }
@@ -0,0 +1,160 @@
+package github.com.st235.chiplayout;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+
+import androidx.annotation.ColorInt;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Px;
+import androidx.annotation.StyleRes;
+
+/**
+ * Appearance shared by all chips drawn by {@link ChipLayout} without child views.
+ */
+public final class ChipStyle {
+
+    /**
+     * Attributes read from style resource, should be sorted by id
+     * as it is required by {@link Context#obtainStyledAttributes(int, int[])}.
+     */
+    private static final int[] STYLE_ATTRS = {
+            android.R.attr.textSize,
+            android.R.attr.textColor,
+            android.R.attr.background,
+            android.R.attr.paddingLeft,
+            android.R.attr.paddingTop,
+            android.R.attr.paddingRight,
+            android.R.attr.paddingBottom,
+    };
+
+    private static final int INDEX_TEXT_SIZE = 0;
+    private static final int INDEX_TEXT_COLOR = 1;
+    private static final int INDEX_BACKGROUND = 2;
+    private static final int INDEX_PADDING_LEFT = 3;
+    private static final int INDEX_PADDING_TOP = 4;
+    private static final int INDEX_PADDING_RIGHT = 5;
+    private static final int INDEX_PADDING_BOTTOM = 6;
+
+    @Px
+    private final float textSize;
+    @ColorInt
+    private final int textColor;
+    @Nullable
+    private final Typeface typeface;
+    @Nullable
+    private final Drawable background;
+
+    @Px
+    private final int paddingLeft;
+    @Px
+    private final int paddingTop;
+    @Px
+    private final int paddingRight;
+    @Px
+    private final int paddingBottom;
+    @Px
+    private final int margin;
+
+    /**
+     * Creates new style
+     * @param background is shared between all chips, so it should not be used anywhere else
+     * @param margin is applied to every side of a chip
+     */
+    public ChipStyle(@Px float textSize,
+                     @ColorInt int textColor,
+                     @Nullable Typeface typeface,
+                     @Nullable Drawable background,
+                     @Px int paddingLeft,
+                     @Px int paddingTop,
+                     @Px int paddingRight,
+                     @Px int paddingBottom,
+                     @Px int margin) {
+        this.textSize = textSize;
+        this.textColor = textColor;
+        this.typeface = typeface;
+        this.background = background;
+        this.paddingLeft = paddingLeft;
+        this.paddingTop = paddingTop;
+        this.paddingRight = paddingRight;
+        this.paddingBottom = paddingBottom;
+        this.margin = margin;
+    }
+
+    /**
+     * Reads chip style from the same style resource which is used for chip views,
+     * for example {@code R.style.ChipViewTextAppearance}
+     * @param styleRes a style with text size, text color, background and paddings
+     * @param margin is applied to every side of a chip
+     * @return new style
+     */
+    @NonNull
+    public static ChipStyle fromStyle(@NonNull Context context,
+                                      @StyleRes int styleRes,
+                                      @Px int margin) {
+        TypedArray ta = context.obtainStyledAttributes(styleRes, STYLE_ATTRS);
+
+        final Drawable background = ta.getDrawable(INDEX_BACKGROUND);
+        final ChipStyle style = new ChipStyle(
+                ta.getDimension(INDEX_TEXT_SIZE, 0f),
+                ta.getColor(INDEX_TEXT_COLOR, Color.BLACK),
+                null,
+                background == null ? null : background.mutate(),
+                ta.getDimensionPixelSize(INDEX_PADDING_LEFT, 0),
+                ta.getDimensionPixelSize(INDEX_PADDING_TOP, 0),
+                ta.getDimensionPixelSize(INDEX_PADDING_RIGHT, 0),
+                ta.getDimensionPixelSize(INDEX_PADDING_BOTTOM, 0),
+                margin);
+
+        ta.recycle();
+        return style;
+    }
+
+    @Px
+    public float getTextSize() {
+        return textSize;
+    }
+
+    @ColorInt
+    public int getTextColor() {
+        return textColor;
+    }
+
+    @Nullable
+    public Typeface getTypeface() {
+        return typeface;
+    }
+
+    @Nullable
+    public Drawable getBackground() {
+        return background;
+    }
+
+    @Px
+    public int getPaddingLeft() {
+        return paddingLeft;
+    }
+
+    @Px
+    public int getPaddingTop() {
+        return paddingTop;
+    }
+
+    @Px
+    public int getPaddingRight() {
+        return paddingRight;
+    }
+
+    @Px
+    public int getPaddingBottom() {
+        return paddingBottom;
+    }
+
+    @Px
+    public int getMargin() {
+        return margin;
+    }
+}
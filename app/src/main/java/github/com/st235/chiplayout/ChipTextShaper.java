@@ -0,0 +1,140 @@
+package github.com.st235.chiplayout;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+import androidx.core.text.PrecomputedTextCompat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shapes chip labels off the main thread.
+ *
+ * Labels are precomputed with {@link PrecomputedTextCompat}, so text layout
+ * of the chips does not have to be done during their first measure pass.
+ * Results are delivered back on the main thread unless request has been cancelled.
+ */
+final class ChipTextShaper {
+
+    /**
+     * Receives shaped labels on the main thread.
+     */
+    interface Callback {
+
+        /**
+         * Called when all labels have been shaped and request has not been cancelled
+         * @param request finished request
+         * @param texts shaped labels in the order they have been passed
+         */
+        @MainThread
+        void onTextsShaped(@NonNull Request request, @NonNull List<PrecomputedTextCompat> texts);
+    }
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final ExecutorService EXECUTOR =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ChipTextShaper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private ChipTextShaper() {
+    }
+
+    /**
+     * Schedules labels shaping
+     * @param labels texts to shape, list is copied
+     * @param params text metrics params of the views which will show labels
+     * @param callback receiver of the result
+     * @return request which could be used for cancellation
+     */
+    @NonNull
+    @MainThread
+    static Request shape(@NonNull List<String> labels,
+                         @NonNull PrecomputedTextCompat.Params params,
+                         @NonNull Callback callback) {
+        final Request request = new Request(new ArrayList<>(labels), params, callback);
+        request.future = EXECUTOR.submit(request);
+        return request;
+    }
+
+    /**
+     * Single shaping request.
+     */
+    static final class Request implements Runnable {
+
+        @NonNull
+        private final List<String> labels;
+        @NonNull
+        private final PrecomputedTextCompat.Params params;
+        @NonNull
+        private final Callback callback;
+
+        private volatile Future<?> future;
+        private volatile boolean isCancelled;
+
+        private Request(@NonNull List<String> labels,
+                        @NonNull PrecomputedTextCompat.Params params,
+                        @NonNull Callback callback) {
+            this.labels = labels;
+            this.params = params;
+            this.callback = callback;
+        }
+
+        @Override
+        @WorkerThread
+        public void run() {
+            final int count = labels.size();
+            final List<PrecomputedTextCompat> texts = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                if (isCancelled) {
+                    return;
+                }
+                texts.add(PrecomputedTextCompat.create(labels.get(i), params));
+            }
+
+            MAIN_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled) {
+                        callback.onTextsShaped(Request.this, texts);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Cancels request, callback will not be called after this method returns
+         * if it is called from the main thread.
+         */
+        @MainThread
+        void cancel() {
+            isCancelled = true;
+
+            final Future<?> future = this.future;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
@@ -11,31 +11,57 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.Shader;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.View;
 
-import androidx.annotation.CheckResult;
 import androidx.annotation.ColorInt;
 import androidx.annotation.DrawableRes;
 import androidx.annotation.FloatRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.Px;
+import androidx.core.os.TraceCompat;
+import androidx.core.view.ViewCompat;
 
 /**
  * Displays image resources, for example {@link android.graphics.drawable.Drawable} resources
  * with a circular mask.
  */
 public class CircularImageView extends View {
-    private static final String TAG = "CircularImageView";
     private static final String DEFAULT_PLACEHOLDER = "Ex";
 
     private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
     private final PointF center = new PointF();
+    private final Matrix shaderMatrix = new Matrix();
+
+    private final ImageLoader.Callback imageCallback = new ImageLoader.Callback() {
+        @Override
+        public void onImageLoaded(@NonNull ImageLoader.Request request, @Nullable Bitmap bitmap) {
+            if (request != imageRequest) {
+                if (bitmap != null) {
+                    BitmapMemoryCache.getInstance().release(bitmap);
+                }
+                return;
+            }
+
+            imageRequest = null;
+            // failed image is not requested again until drawable or size changes
+            failedImageSize = bitmap == null ? Math.max(getWidth(), getHeight()) : 0;
+            setTargetImage(bitmap);
+        }
+    };
+
+    private final AvatarAtlas.Listener atlasListener = new AvatarAtlas.Listener() {
+        @Override
+        public void onSlotMoved(@NonNull AvatarAtlas.Slot slot) {
+            if (slot == atlasSlot) {
+                updateShader();
+                invalidate();
+            }
+        }
+    };
 
     @NonNull
     private String extraText = DEFAULT_PLACEHOLDER;
@@ -46,15 +72,45 @@ public class CircularImageView extends View {
     @Nullable
     private Bitmap targetImage;
 
+    /**
+     * Place of the image in the shared atlas, used instead of targetImage in the atlas mode
+     */
+    @Nullable
+    private AvatarAtlas.Slot atlasSlot;
+
     @ColorInt
     private int textColor = Color.BLACK;
 
     @Px
     private int textSize = 0;
 
+    @NonNull
+    private TextMetricsCache.Metrics textMetrics;
+
+    @Nullable
+    private BitmapShader shader;
+
+    @Nullable
+    private ImageLoader.Request imageRequest;
+
+    @Px
+    private int failedImageSize;
+
+    private boolean isCompositeCacheEnabled;
+    private boolean isAtlasEnabled;
+
+    /**
+     * Retained composite of the current inputs, null until the next draw if inputs have changed
+     */
+    @Nullable
+    private Bitmap composite;
+
     @FloatRange(from = 0.0f)
     private float radius;
 
+    private float textX;
+    private float textY;
+
     /**
      * Creates new one from code
      */
@@ -101,10 +157,7 @@ public class CircularImageView extends View {
     private void init(@NonNull Context context, @Nullable AttributeSet attrs) {
         TypedArray ta = context.obtainStyledAttributes(attrs, R.styleable.CircularImageView);
 
-        final int drawableId = ta.getResourceId(R.styleable.CircularImageView_cl_foreground, -1);
-        if (drawableId != -1) {
-            loadDrawable(drawableId);
-        }
+        drawableId = ta.getResourceId(R.styleable.CircularImageView_cl_foreground, -1);
 
         textColor = ta.getColor(R.styleable.CircularImageView_cl_text_color, Color.BLACK);
         textSize = ta.getDimensionPixelSize(R.styleable.CircularImageView_cl_text_size, 0);
@@ -112,7 +165,17 @@ public class CircularImageView extends View {
         final String t = ta.getString(R.styleable.CircularImageView_cl_text);
         extraText = t == null ? extraText : t;
 
+        isCompositeCacheEnabled = ta.getBoolean(R.styleable.CircularImageView_cl_composite_cache, false);
+        isAtlasEnabled = ta.getBoolean(R.styleable.CircularImageView_cl_atlas, false);
+
         ta.recycle();
+
+        BitmapMemoryCache.getInstance().registerComponentCallbacks(context);
+
+        paint.setStyle(Paint.Style.FILL);
+        textPaint.setColor(textColor);
+        textPaint.setTextSize(textSize);
+        textMetrics = TextMetricsCache.get(textPaint.getTextSize(), textPaint.getTypeface());
     }
 
     /**
@@ -121,16 +184,54 @@ public class CircularImageView extends View {
      */
     public void setExtraText(@NonNull String extraText) {
         this.extraText = extraText;
+        updateTextPosition();
+        releaseComposite();
+        invalidate();
+    }
+
+    /**
+     * Enables drawing of the masked image and text as a single cached bitmap.
+     * Composite is rendered once per inputs, ie image, size and text,
+     * and is shared with other views which have the same inputs, so it suits lists of avatars
+     * and placeholders. Costs a bitmap of the view size per distinct inputs.
+     * @param isEnabled true to draw cached composite, false to draw image and text every time
+     */
+    public void setCompositeCacheEnabled(boolean isEnabled) {
+        if (isCompositeCacheEnabled == isEnabled) {
+            return;
+        }
+
+        isCompositeCacheEnabled = isEnabled;
+        releaseComposite();
         invalidate();
     }
 
+    /**
+     * Enables keeping the image in an atlas shared with other views instead of a bitmap of its own.
+     * Suits screens with many small images of the same size, as they are drawn from
+     * a few large textures. Images which do not fit into the atlas are kept as separate bitmaps.
+     * @param isEnabled true to draw image from atlas
+     */
+    public void setAtlasEnabled(boolean isEnabled) {
+        if (isAtlasEnabled == isEnabled) {
+            return;
+        }
+
+        isAtlasEnabled = isEnabled;
+        failedImageSize = 0;
+        setTargetImage(null);
+        requestImage();
+    }
+
     /**
      * Set current image drawable resource
      * @param drawableId is identifier of drawable which will be displayed at image view
      */
     public void setDrawableResource(@DrawableRes int drawableId) {
-        loadDrawable(drawableId);
-        invalidate();
+        this.drawableId = drawableId;
+        failedImageSize = 0;
+        setTargetImage(null);
+        requestImage();
     }
 
     /**
@@ -138,10 +239,8 @@ public class CircularImageView extends View {
      */
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-        final Paint.FontMetrics fontMetrics = paint.getFontMetrics();
-
-        final float textWidth = paint.measureText(extraText);
-        final float textHeight = -fontMetrics.top + fontMetrics.bottom;
+        final float textWidth = textMetrics.measureText(extraText);
+        final float textHeight = -textMetrics.getTop() + textMetrics.getBottom();
 
         final int desiredWidth = Math.round(textWidth + getPaddingLeft() + getPaddingRight());
         final int desiredHeight = Math.round(textHeight * 2f + getPaddingTop()  + getPaddingBottom());
@@ -179,128 +278,271 @@ public class CircularImageView extends View {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        radius = Math.min(w / 2.0f - getPaddingLeft() - getPaddingRight(),
+                h / 2.0f - getPaddingTop() - getPaddingBottom());
+        center.set(w / 2.0f, h / 2.0f);
+
+        requestImage();
+        updateShaderMatrix();
+        updateTextPosition();
+        releaseComposite();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        if (!hasImage()) {
+            requestImage();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onDetachedFromWindow() {
+        cancelImageRequest();
+        setTargetImage(null);
+        releaseComposite();
+        super.onDetachedFromWindow();
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     protected void onDraw(Canvas canvas) {
-        paint.setStyle(Paint.Style.FILL);
+        final boolean isTracing = Instrumentation.isTracingEnabled();
+        if (isTracing) {
+            TraceCompat.beginSection("CircularImageView#onDraw");
+        }
 
-        radius = Math.min(getMeasuredWidth() / 2.0f - getPaddingLeft() - getPaddingRight(),
-                getMeasuredHeight() / 2.0f - getPaddingTop() - getPaddingBottom());
-        center.set(getMeasuredWidth() / 2.0f, getMeasuredHeight() / 2.0f);
+        try {
+            if (isCompositeCacheEnabled && getWidth() > 0 && getHeight() > 0) {
+                if (composite == null) {
+                    composite = obtainComposite();
+                }
+                canvas.drawBitmap(composite, 0F, 0F, null);
+            } else {
+                drawContent(canvas);
+            }
+        } finally {
+            if (isTracing) {
+                TraceCompat.endSection();
+            }
+        }
+    }
 
-        if (targetImage == null && drawableId != -1) {
-            loadDrawable(drawableId);
+    /**
+     * Draws masked image, if there is one, and extra text on top of it
+     */
+    private void drawContent(@NonNull Canvas canvas) {
+        if (shader != null) {
+            canvas.drawCircle(center.x, center.y, radius, paint);
         }
 
-        updateShader();
-        canvas.drawCircle(center.x, center.y, radius, paint);
+        canvas.drawText(extraText, textX, textY, textPaint);
+    }
 
-        paint.setShader(null);
-        paint.setColor(textColor);
-        paint.setTextSize(textSize);
+    /**
+     * Returns composite of the current inputs from cache or renders it on a miss
+     * @return retained composite of the view size
+     */
+    @NonNull
+    private Bitmap obtainComposite() {
+        final AvatarCompositeCache cache = AvatarCompositeCache.getInstance();
+        final AvatarCompositeCache.Key key = new AvatarCompositeCache.Key(
+                hasImage()
+                        ? imageKey(atlasSlot != null ? atlasSlot.getSize() : targetImage.getWidth())
+                        : null,
+                getWidth(), getHeight(), radius,
+                extraText, textColor, textPaint.getTextSize(), textPaint.getTypeface());
+
+        Bitmap bitmap = cache.acquire(key);
+        if (bitmap == null) {
+            bitmap = BitmapPool.getInstance().getDirty(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+            drawContent(new Canvas(bitmap));
+            cache.put(key, bitmap);
+        }
+        return bitmap;
+    }
 
-        final float textWidth = paint.measureText(extraText);
-        int textY = (int) (center.y - ((paint.descent() + paint.ascent()) / 2)) ;
-        canvas.drawText(extraText, center.x - textWidth / 2, textY, paint);
+    /**
+     * @return memory cache key of the current drawable of the given size
+     */
+    @NonNull
+    private BitmapMemoryCache.Key imageKey(int size) {
+        return ImageLoader.cacheKey(getResources(), getContext().getTheme(), drawableId, size);
     }
 
     /**
-     * Loads targetImage to be shown into memory
-     * @param drawableId which will be loaded as target
+     * Stops drawing current composite, should be called whenever any of its inputs changes
      */
-    private void loadDrawable(@DrawableRes int drawableId) {
-        this.drawableId = drawableId;
-        Drawable drawable = getResources().getDrawable(drawableId);
-        targetImage = drawableToBitmap(drawable);
-        targetImage = cropBitmap(targetImage);
+    private void releaseComposite() {
+        if (composite != null) {
+            AvatarCompositeCache.getInstance().release(composite);
+            composite = null;
+        }
     }
 
     /**
-     * Updates paint shader with custom targetImage target
+     * Starts asynchronous loading of the current drawable
+     * downsampled to the view size unless it is already in memory cache.
+     * Extra text stays as a placeholder until image arrives. Does nothing if view is not attached or not laid out yet,
+     * or if the drawable has already failed to load at this size.
      */
-    private void updateShader() {
-        if (targetImage == null) {
+    private void requestImage() {
+        cancelImageRequest();
+
+        final int size = Math.max(getWidth(), getHeight());
+        if (drawableId == -1 || size <= 0 || size == failedImageSize
+                || !ViewCompat.isAttachedToWindow(this)) {
             return;
         }
 
-        BitmapShader shader = new BitmapShader(targetImage, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        final boolean isTracing = Instrumentation.isTracingEnabled();
+        if (isTracing) {
+            TraceCompat.beginSection("CircularImageView#requestImage");
+        }
 
-        Matrix matrix = new Matrix();
-        matrix.setScale((float) getMeasuredWidth() / (float) targetImage.getWidth(),
-                (float) getMeasuredHeight() / (float) targetImage.getHeight());
-        shader.setLocalMatrix(matrix);
-        paint.setShader(shader);
+        try {
+            final AvatarAtlas.Slot slot = isAtlasEnabled
+                    ? AvatarAtlas.getInstance().acquire(imageKey(size), atlasListener)
+                    : null;
+            final Bitmap cached = slot == null
+                    ? ImageLoader.getCached(getResources(), getContext().getTheme(), drawableId, size)
+                    : null;
+
+            if (slot != null) {
+                setImage(null, slot);
+            } else if (cached != null) {
+                setTargetImage(cached);
+            } else {
+                imageRequest = ImageLoader.load(getResources(), getContext().getTheme(),
+                        BitmapDiskCache.getInstance(getContext()),
+                        drawableId, size, imageCallback);
+            }
+        } finally {
+            if (isTracing) {
+                TraceCompat.endSection();
+            }
+        }
     }
 
     /**
-     * Creates center cropped targetImage from origin
-     * @param bitmap which need to be cropped
-     * @return targetImage instance
+     * Cancels image loading if it is in progress
      */
-    @Nullable
-    @CheckResult
-    private Bitmap cropBitmap(@Nullable Bitmap bitmap) {
-        if (bitmap == null) {
-            return null;
+    private void cancelImageRequest() {
+        if (imageRequest != null) {
+            imageRequest.cancel();
+            imageRequest = null;
         }
+    }
 
-        if (bitmap.getWidth() >= bitmap.getHeight()) {
-            return Bitmap.createBitmap(
-                    bitmap,
-                    bitmap.getWidth() / 2 - bitmap.getHeight() / 2,
-                    0,
-                    bitmap.getHeight(), bitmap.getHeight());
+    /**
+     * Replaces image to be shown and releases the previous one.
+     * In the atlas mode image is copied to the atlas and released right away.
+     * @param bitmap retained square image or null to show only extra text
+     */
+    private void setTargetImage(@Nullable Bitmap bitmap) {
+        final AvatarAtlas.Slot slot = bitmap != null && isAtlasEnabled
+                ? AvatarAtlas.getInstance().put(imageKey(bitmap.getWidth()),
+                        bitmap, atlasListener)
+                : null;
+
+        if (slot != null) {
+            BitmapMemoryCache.getInstance().release(bitmap);
+            setImage(null, slot);
+        } else {
+            setImage(bitmap, null);
         }
-
-        return Bitmap.createBitmap(
-                bitmap,
-                0,
-                bitmap.getHeight() / 2 - bitmap.getWidth() / 2,
-                bitmap.getWidth(), bitmap.getWidth());
     }
 
     /**
-     * Converts drawable to targetImage.
-     * If the drawable has no intrinsic
-     * width or height the laid out sizes will be set up as current viewport.
-     * @param drawable which need to be shown
-     * @return targetImage instance of drawable
+     * Replaces image with either a bitmap or an atlas slot, releases the previous one
+     * @param bitmap retained square image or null
+     * @param slot retained atlas slot or null
      */
-    @Nullable
-    @CheckResult
-    private Bitmap drawableToBitmap(@Nullable Drawable drawable) {
-        if (drawable == null) {
-            return null;
+    private void setImage(@Nullable Bitmap bitmap, @Nullable AvatarAtlas.Slot slot) {
+        if (targetImage != null) {
+            BitmapMemoryCache.getInstance().release(targetImage);
         }
+        if (atlasSlot != null) {
+            AvatarAtlas.getInstance().release(atlasSlot, atlasListener);
+        }
+
+        targetImage = bitmap;
+        atlasSlot = slot;
+        updateShader();
+        releaseComposite();
+        invalidate();
+    }
+
+    private boolean hasImage() {
+        return targetImage != null || atlasSlot != null;
+    }
 
-        if (drawable instanceof BitmapDrawable) {
-            return ((BitmapDrawable) drawable).getBitmap();
+    /**
+     * Creates paint shader for current targetImage or atlas page.
+     * Should be called only when image changes.
+     */
+    private void updateShader() {
+        final Bitmap source = atlasSlot != null ? atlasSlot.getPage() : targetImage;
+        if (source == null) {
+            shader = null;
+            paint.setShader(null);
+            return;
         }
 
-        int intrinsicWidth = drawable.getIntrinsicWidth();
-        int intrinsicHeight = drawable.getIntrinsicHeight();
+        shader = new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        paint.setShader(shader);
+        updateShaderMatrix();
+    }
 
-        if (intrinsicWidth == -1 || intrinsicHeight == -1) {
-            intrinsicWidth = getMeasuredWidth();
-            intrinsicHeight = getMeasuredHeight();
+    /**
+     * Scales targetImage or its atlas sub-rect to the view bounds.
+     * Should be called when either size or image changes.
+     */
+    private void updateShaderMatrix() {
+        if (shader == null) {
+            return;
         }
 
-        if (intrinsicWidth <= 0 || intrinsicHeight <= 0) {
-            return null;
+        if (atlasSlot != null) {
+            final float scale = (float) atlasSlot.getSize();
+            shaderMatrix.setTranslate(-atlasSlot.getLeft(), -atlasSlot.getTop());
+            shaderMatrix.postScale(getWidth() / scale, getHeight() / scale);
+            shader.setLocalMatrix(shaderMatrix);
+            return;
         }
 
-        try {
-            Bitmap bitmap =
-                    Bitmap.createBitmap(intrinsicWidth, intrinsicHeight, Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
-            drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-            drawable.draw(canvas);
-            return bitmap;
-        } catch (OutOfMemoryError e) {
-            Log.e(TAG, "OutOfMemory while creating targetImage!");
-            return null;
+        if (targetImage == null) {
+            return;
         }
+
+        shaderMatrix.setScale((float) getWidth() / (float) targetImage.getWidth(),
+                (float) getHeight() / (float) targetImage.getHeight());
+        shader.setLocalMatrix(shaderMatrix);
+    }
+
+    /**
+     * Calculates extra text origin, so it will be drawn at the center of the view.
+     * Should be called when either size or text changes.
+     */
+    private void updateTextPosition() {
+        final float textWidth = textMetrics.measureText(extraText);
+        textX = center.x - textWidth / 2;
+        textY = (int) (center.y - ((textMetrics.getDescent() + textMetrics.getAscent()) / 2));
     }
 }
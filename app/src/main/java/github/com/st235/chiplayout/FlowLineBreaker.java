@@ -0,0 +1,615 @@
+package github.com.st235.chiplayout;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Greedy flow line-breaking engine.
+ *
+ * Places items one after another and wraps to a new row
+ * once the next item does not fit into the remaining width.
+ * Does not depend on any {@link android.view.View} api, so it could be
+ * used from plain jvm code.
+ *
+ * All results are stored in arrays owned by the breaker.
+ * Arrays are reused between calls and grow only when the amount of items
+ * exceeds previous capacity, so steady-state calls do not allocate.
+ * When only a part of items has changed, rows could be rebuilt incrementally,
+ * see {@link #breakLines(int[], int[], int, int, int, int)}.
+ * Rows of similar widths could be built instead of greedy ones,
+ * see {@link #breakLinesBalanced(int[], int[], int, int)}.
+ */
+public final class FlowLineBreaker {
+
+    /**
+     * Item width which marks item as skipped.
+     * Skipped item does not occupy any space, it is placed right after the previous item,
+     * so horizontal offsets never decrease within a row and rows could be binary searched.
+     */
+    public static final int SKIP = -1;
+
+    @NonNull
+    private int[] xs = new int[0];
+    @NonNull
+    private int[] ys = new int[0];
+
+    /**
+     * Index of the first item of every row, the last element
+     * is always equal to the amount of items, so row {@code r}
+     * is {@code [rowStarts[r], rowStarts[r + 1])}.
+     */
+    @NonNull
+    private int[] rowStarts = new int[1];
+    @NonNull
+    private int[] rowTops = new int[0];
+    @NonNull
+    private int[] rowHeights = new int[0];
+    @NonNull
+    private int[] rowWidths = new int[0];
+
+    /**
+     * Snapshot of rows from the previous call, used by incremental breaking
+     * to detect the moment when new rows converge with the old ones.
+     */
+    @NonNull
+    private int[] previousRowStarts = new int[1];
+    @NonNull
+    private int[] previousRowTops = new int[0];
+    @NonNull
+    private int[] previousRowHeights = new int[0];
+    @NonNull
+    private int[] previousRowWidths = new int[0];
+
+    /**
+     * Scratch storage of balanced breaking, grows together with the amount of items.
+     */
+    @NonNull
+    private long[] balancePrefixWidths = new long[1];
+    @NonNull
+    private long[] balanceCosts = new long[1];
+    @NonNull
+    private int[] balanceBreaks = new int[1];
+    @NonNull
+    private int[] balanceItems = new int[0];
+    @NonNull
+    private int[] balanceCandidates = new int[1];
+    @NonNull
+    private int[] balanceCandidateStarts = new int[1];
+
+    private int itemCount;
+    private int rowCount;
+    private int maxWidth = -1;
+
+    private int width;
+    private int height;
+
+    /**
+     * Breaks items into rows.
+     * Sizes are outer ones, ie should already include margins.
+     *
+     * @param widths items widths or {@link #SKIP} for items which should be ignored
+     * @param heights items heights
+     * @param count amount of items to take from arrays
+     * @param maxWidth max width of a single row
+     */
+    public void breakLines(@NonNull int[] widths,
+                           @NonNull int[] heights,
+                           @IntRange(from = 0) int count,
+                           @IntRange(from = 0) int maxWidth) {
+        ensureCapacity(count);
+
+        this.maxWidth = maxWidth;
+        itemCount = count;
+        rowCount = 0;
+        width = 0;
+        height = 0;
+
+        breakRows(widths, heights, 0, count, count, 0);
+    }
+
+    /**
+     * Breaks items into rows reusing results of the previous call.
+     *
+     * Items {@code [0, dirtyStart)} should be equal to the previous ones
+     * and items {@code [dirtyEnd, count)} should be equal to the previous items
+     * {@code [dirtyEnd - delta, previousCount)}, where {@code delta} is the difference
+     * between the new and the previous amount of items. Rows are rebuilt starting
+     * from the row right before the first dirty item and only until new row boundaries
+     * converge with the old ones, the rest rows are just shifted.
+     *
+     * Falls back to the full pass if max width has changed.
+     *
+     * @param widths items widths or {@link #SKIP} for items which should be ignored
+     * @param heights items heights
+     * @param count amount of items to take from arrays
+     * @param maxWidth max width of a single row
+     * @param dirtyStart index of the first changed item
+     * @param dirtyEnd index of the item right after the last changed one
+     */
+    public void breakLines(@NonNull int[] widths,
+                           @NonNull int[] heights,
+                           @IntRange(from = 0) int count,
+                           @IntRange(from = 0) int maxWidth,
+                           @IntRange(from = 0) int dirtyStart,
+                           @IntRange(from = 0) int dirtyEnd) {
+        if (maxWidth != this.maxWidth || rowCount == 0 || dirtyStart <= 0) {
+            breakLines(widths, heights, count, maxWidth);
+            return;
+        }
+
+        final int delta = count - itemCount;
+        final int previousRowCount = rowCount;
+        snapshotRows();
+
+        ensureCapacity(count);
+        if (delta != 0 && dirtyEnd < count) {
+            System.arraycopy(xs, dirtyEnd - delta, xs, dirtyEnd, count - dirtyEnd);
+            System.arraycopy(ys, dirtyEnd - delta, ys, dirtyEnd, count - dirtyEnd);
+        }
+
+        final int fromRow = findRowOf(Math.min(dirtyStart, itemCount) - 1);
+
+        itemCount = count;
+        rowCount = fromRow;
+        height = previousRowTops[fromRow];
+        width = 0;
+        for (int r = 0; r < fromRow; r++) {
+            width = Math.max(width, previousRowWidths[r]);
+        }
+
+        breakRows(widths, heights, previousRowStarts[fromRow], count,
+                Math.max(dirtyEnd, dirtyStart), previousRowCount);
+    }
+
+    /**
+     * Breaks items into rows of widths as close to each other as possible.
+     *
+     * Minimizes the sum of squared free space of all rows including the last one,
+     * so rows are balanced instead of leaving a ragged last row. Never produces more rows
+     * than needed: every extra row only adds free space. Items wider than the max width
+     * take a row of their own as with greedy breaking.
+     *
+     * The cost of a row is a convex function of its width, so optimal breaks are monotone
+     * and candidates are kept in a queue where every candidate owns a range of next breaks,
+     * which takes O(n log n) instead of O(n^2) of the straightforward dynamic programming.
+     * Results could not be reused by incremental breaking, next incremental call does a full pass.
+     *
+     * @param widths items widths or {@link #SKIP} for items which should be ignored
+     * @param heights items heights
+     * @param count amount of items to take from arrays
+     * @param maxWidth max width of a single row
+     */
+    public void breakLinesBalanced(@NonNull int[] widths,
+                                   @NonNull int[] heights,
+                                   @IntRange(from = 0) int count,
+                                   @IntRange(from = 0) int maxWidth) {
+        if (maxWidth == Integer.MAX_VALUE || maxWidth <= 0) {
+            // either all items fit into a single row or every item takes a row of its own anyway
+            breakLines(widths, heights, count, maxWidth);
+            this.maxWidth = -1;
+            return;
+        }
+
+        ensureCapacity(count);
+        ensureBalanceCapacity(count);
+
+        int itemsCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (widths[i] == SKIP) {
+                continue;
+            }
+
+            balanceItems[itemsCount] = i;
+            balancePrefixWidths[itemsCount + 1] =
+                    balancePrefixWidths[itemsCount] + Math.min(widths[i], maxWidth);
+            itemsCount++;
+        }
+
+        findBalancedBreaks(itemsCount, maxWidth);
+
+        // breaks are stored backwards, so collect row ends from the last item
+        int rowsFound = 0;
+        for (int end = itemsCount; end > 0; end = balanceBreaks[end]) {
+            balanceCandidates[rowsFound++] = end;
+        }
+
+        this.maxWidth = -1;
+        itemCount = count;
+        rowCount = 0;
+        width = 0;
+        height = 0;
+        rowStarts[0] = 0;
+
+        int i = 0;
+        for (int r = rowsFound - 1; r >= 0; r--) {
+            final int rowEnd = balanceCandidates[r];
+            final int nextRowStart = rowEnd < itemsCount ? balanceItems[rowEnd] : count;
+
+            int rowWidth = 0;
+            int rowHeight = 0;
+            for (; i < nextRowStart; i++) {
+                xs[i] = rowWidth;
+                ys[i] = height;
+
+                if (widths[i] != SKIP) {
+                    rowWidth += widths[i];
+                    rowHeight = Math.max(rowHeight, heights[i]);
+                }
+            }
+
+            closeRow(nextRowStart, rowWidth, rowHeight);
+        }
+
+        for (; i < count; i++) {
+            xs[i] = 0;
+            ys[i] = height;
+        }
+        rowStarts[rowCount] = count;
+    }
+
+    /**
+     * Finds optimal breaks of the first {@code itemsCount} not skipped items.
+     * Once finished, {@code balanceBreaks[k]} is the start of the last row
+     * of the optimal breaking of the first {@code k} items.
+     */
+    private void findBalancedBreaks(int itemsCount, int maxWidth) {
+        balanceCosts[0] = 0;
+
+        // queue of candidate row starts, every candidate is optimal
+        // for row ends from its start till the start of the next candidate
+        int head = 0;
+        int tail = 0;
+        balanceCandidates[tail] = 0;
+        balanceCandidateStarts[tail] = 1;
+        tail++;
+
+        for (int end = 1; end <= itemsCount; end++) {
+            while (tail - head > 1 && balanceCandidateStarts[head + 1] <= end) {
+                head++;
+            }
+
+            final int best = balanceCandidates[head];
+            balanceCosts[end] = balancedCost(best, end, maxWidth);
+            balanceBreaks[end] = best;
+
+            if (end == itemsCount) {
+                break;
+            }
+
+            // newer candidate stays better once it becomes better,
+            // so it takes over a suffix of row ends from the older ones
+            int takeOverFrom = itemsCount + 1;
+            while (tail > head) {
+                final int candidate = balanceCandidates[tail - 1];
+                final int start = Math.max(balanceCandidateStarts[tail - 1], end + 1);
+
+                if (balancedCost(end, start, maxWidth) <= balancedCost(candidate, start, maxWidth)) {
+                    takeOverFrom = start;
+                    tail--;
+                    continue;
+                }
+
+                int low = start + 1;
+                int high = itemsCount + 1;
+                while (low < high) {
+                    final int mid = (low + high) >>> 1;
+                    if (balancedCost(end, mid, maxWidth) <= balancedCost(candidate, mid, maxWidth)) {
+                        high = mid;
+                    } else {
+                        low = mid + 1;
+                    }
+                }
+                takeOverFrom = low;
+                break;
+            }
+
+            if (takeOverFrom <= itemsCount) {
+                balanceCandidates[tail] = end;
+                balanceCandidateStarts[tail] = tail == head ? end + 1 : takeOverFrom;
+                tail++;
+            }
+        }
+    }
+
+    /**
+     * @return cost of the best breaking of items before {@code start}
+     * plus a row of items {@code [start, end)}, rows wider than the max width are not allowed
+     */
+    private long balancedCost(int start, int end, int maxWidth) {
+        final long rowWidth = balancePrefixWidths[end] - balancePrefixWidths[start];
+        if (rowWidth > maxWidth) {
+            return Long.MAX_VALUE;
+        }
+
+        final long freeSpace = maxWidth - rowWidth;
+        return balanceCosts[start] + freeSpace * freeSpace;
+    }
+
+    /**
+     * Breaks items into rows starting from the given item
+     * which should be the first item of the current row.
+     *
+     * @param from index of the first item of the current row
+     * @param count amount of items
+     * @param convergeFrom index of the first item which may converge with previous rows
+     * @param previousRowCount amount of rows in the snapshot or 0 if there is no snapshot
+     */
+    private void breakRows(@NonNull int[] widths,
+                           @NonNull int[] heights,
+                           int from,
+                           int count,
+                           int convergeFrom,
+                           int previousRowCount) {
+        final int delta = count - (previousRowCount > 0
+                ? previousRowStarts[previousRowCount] : count);
+
+        int rowWidth = 0;
+        int rowHeight = 0;
+        boolean isRowEmpty = true;
+
+        rowStarts[rowCount] = from;
+
+        for (int i = from; i < count; i++) {
+            final int itemWidth = widths[i];
+            if (itemWidth == SKIP) {
+                xs[i] = rowWidth;
+                ys[i] = height;
+                continue;
+            }
+
+            if (!isRowEmpty && rowWidth + itemWidth > maxWidth) {
+                closeRow(i, rowWidth, rowHeight);
+                rowWidth = 0;
+                rowHeight = 0;
+
+                if (i >= convergeFrom && previousRowCount > 0
+                        && tryConverge(i, delta, previousRowCount)) {
+                    return;
+                }
+            }
+
+            xs[i] = rowWidth;
+            ys[i] = height;
+
+            rowWidth += itemWidth;
+            rowHeight = Math.max(rowHeight, heights[i]);
+            isRowEmpty = false;
+        }
+
+        if (!isRowEmpty) {
+            closeRow(count, rowWidth, rowHeight);
+        }
+
+        rowStarts[rowCount] = count;
+    }
+
+    /**
+     * Checks whether the new row starting at the given item begins exactly
+     * where one of the previous rows began. If so the rest of previous rows
+     * are copied with a vertical shift instead of being broken again.
+     *
+     * @param rowStart index of the first item of the new row
+     * @param delta difference between the new and the previous amount of items
+     * @param previousRowCount amount of rows in the snapshot
+     * @return true if rows have converged and breaking is finished
+     */
+    private boolean tryConverge(int rowStart, int delta, int previousRowCount) {
+        final int previousRow = Arrays.binarySearch(previousRowStarts,
+                0, previousRowCount, rowStart - delta);
+        if (previousRow < 0) {
+            return false;
+        }
+
+        final int dy = height - previousRowTops[previousRow];
+
+        for (int r = previousRow; r < previousRowCount; r++) {
+            rowStarts[rowCount] = previousRowStarts[r] + delta;
+            rowTops[rowCount] = previousRowTops[r] + dy;
+            rowHeights[rowCount] = previousRowHeights[r];
+            rowWidths[rowCount] = previousRowWidths[r];
+
+            width = Math.max(width, previousRowWidths[r]);
+            height += previousRowHeights[r];
+            rowCount++;
+        }
+        rowStarts[rowCount] = itemCount;
+
+        if (dy != 0) {
+            for (int i = rowStart; i < itemCount; i++) {
+                ys[i] += dy;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Finishes current row.
+     * @param nextRowStart index of the first item of the next row
+     * @param rowWidth width of the closed row
+     * @param rowHeight height of the closed row
+     */
+    private void closeRow(int nextRowStart, int rowWidth, int rowHeight) {
+        rowTops[rowCount] = height;
+        rowHeights[rowCount] = rowHeight;
+        rowWidths[rowCount] = rowWidth;
+        rowCount++;
+        rowStarts[rowCount] = nextRowStart;
+
+        width = Math.max(width, rowWidth);
+        height += rowHeight;
+    }
+
+    /**
+     * Looks up for a row which contains the given item.
+     * @param item index of the item, values out of range are clamped
+     * @return index of the row
+     */
+    private int findRowOf(int item) {
+        int low = 0;
+        int high = rowCount - 1;
+
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (rowStarts[mid] <= item) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Looks up for a row which contains the given vertical offset.
+     * Offsets above the first row or below the last one are clamped,
+     * so should not be called when there are no rows.
+     * @param y an offset relative to the top of the first row
+     * @return an index of the row
+     */
+    public int findRowAt(int y) {
+        int low = 0;
+        int high = rowCount - 1;
+
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (rowTops[mid] <= y) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Copies current rows into the previous rows storage.
+     */
+    private void snapshotRows() {
+        if (previousRowTops.length < rowTops.length) {
+            previousRowStarts = new int[rowStarts.length];
+            previousRowTops = new int[rowTops.length];
+            previousRowHeights = new int[rowHeights.length];
+            previousRowWidths = new int[rowWidths.length];
+        }
+
+        System.arraycopy(rowStarts, 0, previousRowStarts, 0, rowCount + 1);
+        System.arraycopy(rowTops, 0, previousRowTops, 0, rowCount);
+        System.arraycopy(rowHeights, 0, previousRowHeights, 0, rowCount);
+        System.arraycopy(rowWidths, 0, previousRowWidths, 0, rowCount);
+    }
+
+    /**
+     * Grows results storage to fit at least the given amount of items.
+     * Already calculated results are preserved.
+     * @param count amount of items
+     */
+    private void ensureCapacity(int count) {
+        if (xs.length >= count) {
+            return;
+        }
+
+        final int capacity = Math.max(count, xs.length * 2);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        rowStarts = Arrays.copyOf(rowStarts, capacity + 1);
+        rowTops = Arrays.copyOf(rowTops, capacity);
+        rowHeights = Arrays.copyOf(rowHeights, capacity);
+        rowWidths = Arrays.copyOf(rowWidths, capacity);
+    }
+
+    /**
+     * Grows scratch storage of balanced breaking to fit at least the given amount of items.
+     * @param count amount of items
+     */
+    private void ensureBalanceCapacity(int count) {
+        if (balanceItems.length >= count) {
+            return;
+        }
+
+        final int capacity = Math.max(count, balanceItems.length * 2);
+        balancePrefixWidths = new long[capacity + 1];
+        balanceCosts = new long[capacity + 1];
+        balanceBreaks = new int[capacity + 1];
+        balanceItems = new int[capacity];
+        balanceCandidates = new int[capacity + 1];
+        balanceCandidateStarts = new int[capacity + 1];
+    }
+
+    /**
+     * @return amount of items processed by the last call
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * @return amount of rows produced by the last call
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return width of the widest row
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return sum of all rows heights
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Horizontal offsets of items, only first {@link #getItemCount()} values are valid.
+     * Array is owned by the breaker and is overwritten by the next call.
+     */
+    @NonNull
+    public int[] getXs() {
+        return xs;
+    }
+
+    /**
+     * Vertical offsets of items, only first {@link #getItemCount()} values are valid.
+     * Array is owned by the breaker and is overwritten by the next call.
+     */
+    @NonNull
+    public int[] getYs() {
+        return ys;
+    }
+
+    /**
+     * Indices of rows first items, only first {@link #getRowCount()} + 1 values are valid.
+     * Array is owned by the breaker and is overwritten by the next call.
+     */
+    @NonNull
+    public int[] getRowStarts() {
+        return rowStarts;
+    }
+
+    /**
+     * Vertical offsets of rows, only first {@link #getRowCount()} values are valid.
+     * Array is owned by the breaker and is overwritten by the next call.
+     */
+    @NonNull
+    public int[] getRowTops() {
+        return rowTops;
+    }
+
+    /**
+     * Heights of rows, only first {@link #getRowCount()} values are valid.
+     * Array is owned by the breaker and is overwritten by the next call.
+     */
+    @NonNull
+    public int[] getRowHeights() {
+        return rowHeights;
+    }
+}
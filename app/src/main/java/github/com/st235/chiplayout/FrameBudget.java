@@ -0,0 +1,100 @@
+package github.com.st235.chiplayout;
+
+import androidx.annotation.IntRange;
+
+/**
+ * Sizes batches of work done on the main thread, so every batch fits into a frame.
+ *
+ * Cost of a single item is learned from the previous batches: it is an exponential
+ * moving average of the time spent on a batch, including its measure pass,
+ * divided by the amount of items in it.
+ */
+final class FrameBudget {
+
+    /**
+     * Part of a frame which could be spent on batches,
+     * the rest is left for input, animations and drawing.
+     */
+    private static final float FRAME_BUDGET_FRACTION = 0.5F;
+
+    /**
+     * Weight of the latest sample in the moving average of item cost.
+     */
+    private static final float COST_SMOOTHING = 0.3F;
+
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS = 16_666_667L;
+    private static final long DEFAULT_ITEM_COST_NANOS = 50_000L;
+    private static final long MIN_ITEM_COST_NANOS = 1_000L;
+
+    private long frameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+    private long itemCostNanos = DEFAULT_ITEM_COST_NANOS;
+
+    private int pendingItems;
+    private long pendingNanos;
+
+    /**
+     * Updates frame interval from the display refresh rate
+     * @param refreshRate frames per second, ignored if it is not positive
+     */
+    void setRefreshRate(float refreshRate) {
+        frameIntervalNanos = refreshRate > 0F
+                ? (long) (1_000_000_000L / refreshRate)
+                : DEFAULT_FRAME_INTERVAL_NANOS;
+    }
+
+    /**
+     * @return amount of items which could be processed in the frame, at least one
+     * @param frameTimeNanos start of the frame, in {@link System#nanoTime()} time base
+     */
+    @IntRange(from = 1)
+    int nextBatchSize(long frameTimeNanos) {
+        commitPendingSample();
+
+        final long budgetNanos = (long) (frameIntervalNanos * FRAME_BUDGET_FRACTION)
+                - (System.nanoTime() - frameTimeNanos);
+        if (budgetNanos <= itemCostNanos) {
+            // frame is late, still makes progress
+            return 1;
+        }
+
+        return (int) Math.min(Integer.MAX_VALUE, budgetNanos / itemCostNanos);
+    }
+
+    /**
+     * Remembers a batch, its cost is learned once the batch is measured
+     * @param itemCount amount of items in the batch
+     * @param durationNanos time spent on creating the batch
+     */
+    void onBatchDone(@IntRange(from = 0) int itemCount, long durationNanos) {
+        commitPendingSample();
+        pendingItems = itemCount;
+        pendingNanos = durationNanos;
+    }
+
+    /**
+     * Adds time of a measure pass to the last batch, if there is one
+     */
+    void onBatchMeasured(long durationNanos) {
+        if (pendingItems > 0) {
+            pendingNanos += durationNanos;
+        }
+    }
+
+    /**
+     * Forgets the last batch, for example if it has been dropped before being measured
+     */
+    void reset() {
+        pendingItems = 0;
+        pendingNanos = 0L;
+    }
+
+    private void commitPendingSample() {
+        if (pendingItems <= 0) {
+            return;
+        }
+
+        final long sample = Math.max(MIN_ITEM_COST_NANOS, pendingNanos / pendingItems);
+        itemCostNanos = (long) (itemCostNanos + (sample - itemCostNanos) * COST_SMOOTHING);
+        reset();
+    }
+}
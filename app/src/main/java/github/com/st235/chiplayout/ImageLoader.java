@@ -0,0 +1,350 @@
+package github.com.st235.chiplayout;
+
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.SparseBooleanArray;
+import android.util.TypedValue;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.IntRange;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.core.content.res.ResourcesCompat;
+import androidx.core.graphics.BitmapCompat;
+import androidx.core.os.TraceCompat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes square center cropped images off the main thread.
+ *
+ * Images are downsampled to the requested size before cropping,
+ * results are delivered back on the main thread unless request has been cancelled.
+ * Decoded images are shared between views through {@link BitmapMemoryCache}
+ * and persisted in {@link BitmapDiskCache}, so they are not decoded again after restart.
+ */
+final class ImageLoader {
+
+    /**
+     * Receives results of image loading on the main thread.
+     */
+    interface Callback {
+
+        /**
+         * Called when request has finished and has not been cancelled
+         * @param request finished request
+         * @param bitmap loaded image or null if it could not be decoded,
+         *               image is retained on behalf of the callback
+         */
+        @MainThread
+        void onImageLoaded(@NonNull Request request, @Nullable Bitmap bitmap);
+    }
+
+    private static final int THREADS_COUNT =
+            Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final ExecutorService EXECUTOR =
+            Executors.newFixedThreadPool(THREADS_COUNT, new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ImageLoader-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Whether drawables are inflated from xml, ie depend on theme, by their identifiers, guarded by itself.
+     */
+    private static final SparseBooleanArray XML_DRAWABLES = new SparseBooleanArray();
+
+    private ImageLoader() {
+    }
+
+    /**
+     * Schedules image decoding
+     * @param resources to load image from
+     * @param theme to inflate non-bitmap drawables with
+     * @param diskCache cache to look up image in before decoding or null to always decode it
+     * @param drawableId identifier of image
+     * @param size side of the square to fit the image to
+     * @param callback receiver of the result
+     * @return request which could be used for cancellation
+     */
+    @NonNull
+    @MainThread
+    static Request load(@NonNull Resources resources,
+                        @Nullable Resources.Theme theme,
+                        @Nullable BitmapDiskCache diskCache,
+                        @DrawableRes int drawableId,
+                        @IntRange(from = 1) int size,
+                        @NonNull Callback callback) {
+        final Request request = new Request(resources, theme, diskCache, drawableId, size, callback);
+        request.future = EXECUTOR.submit(request);
+        return request;
+    }
+
+    /**
+     * Decodes square center cropped image downsampled to the given size.
+     * Disk cache is consulted first, so images stored there are only read, not decoded.
+     * Only bitmap resources are stored there, rasterized drawables depend on the theme.
+     * Only the central square of bitmap resources is decoded and subsampled, other drawables
+     * are rasterized once right at the requested size. Intermediate bitmaps go back to {@link BitmapPool}.
+     * Decoded image is cached and retained on behalf of the caller,
+     * who should {@link BitmapMemoryCache#release(Bitmap)} it afterwards.
+     * @return image or null if it could not be decoded
+     */
+    @Nullable
+    @WorkerThread
+    static Bitmap decode(@NonNull Resources resources,
+                         @Nullable Resources.Theme theme,
+                         @Nullable BitmapDiskCache diskCache,
+                         @DrawableRes int drawableId,
+                         @IntRange(from = 1) int size) {
+        final boolean isTracing = Instrumentation.isTracingEnabled();
+        if (isTracing) {
+            TraceCompat.beginSection("ImageLoader#decode");
+        }
+
+        final Instrumentation.Listener listener = Instrumentation.getListener();
+        final long startNanos = Instrumentation.startTime(listener);
+        Bitmap bitmap = null;
+
+        try {
+            if (diskCache != null) {
+                bitmap = diskCache.get(resources, drawableId, size, size,
+                        BitmapMemoryCache.TRANSFORMATION_CENTER_CROP);
+            }
+
+            if (bitmap == null) {
+                final boolean isBitmapResource = isBitmapResource(resources, drawableId);
+                bitmap = decodeSquare(resources, theme, drawableId, size, isBitmapResource);
+                // rasterized drawables depend on the theme, which disk cache does not track
+                if (bitmap != null && diskCache != null && isBitmapResource) {
+                    diskCache.put(resources, drawableId, size, size,
+                            BitmapMemoryCache.TRANSFORMATION_CENTER_CROP, bitmap);
+                }
+            }
+        } finally {
+            if (isTracing) {
+                TraceCompat.endSection();
+            }
+        }
+
+        if (listener != null) {
+            listener.onImageDecoded(drawableId,
+                    bitmap == null ? 0 : BitmapCompat.getAllocationByteCount(bitmap),
+                    Instrumentation.elapsedSince(startNanos));
+        }
+
+        if (bitmap == null) {
+            return null;
+        }
+
+        final Bitmap cached = BitmapMemoryCache.getInstance()
+                .putAndRetain(cacheKey(resources, theme, drawableId, size), bitmap);
+        if (cached != bitmap) {
+            // another thread has decoded the same image meanwhile
+            BitmapPool.getInstance().put(bitmap);
+        }
+        return cached;
+    }
+
+    /**
+     * @return true if drawable is a bitmap resource, false for vector, shape and other drawables
+     */
+    @WorkerThread
+    private static boolean isBitmapResource(@NonNull Resources resources, @DrawableRes int drawableId) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(resources, drawableId, options);
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
+
+    /**
+     * Decodes square image choosing the cheapest way for the drawable type.
+     * @param isBitmapResource result of {@link #isBitmapResource(Resources, int)} for the drawable
+     * @return image or null if it could not be decoded
+     */
+    @Nullable
+    @WorkerThread
+    private static Bitmap decodeSquare(@NonNull Resources resources,
+                                       @Nullable Resources.Theme theme,
+                                       @DrawableRes int drawableId,
+                                       @IntRange(from = 1) int size,
+                                       boolean isBitmapResource) {
+        final Bitmap bitmap;
+        if (isBitmapResource) {
+            // region decoding skips pixels outside of the central square,
+            // full decode is left for formats region decoder does not support
+            final Bitmap square = BitmapHelper.decodeCenterCropBitmap(resources, drawableId, size);
+            if (square != null) {
+                bitmap = square;
+            } else {
+                final Bitmap source = BitmapHelper.decodeSampledBitmap(resources, drawableId, size, size);
+                bitmap = BitmapHelper.cropBitmap(source);
+                if (source != null && source != bitmap) {
+                    BitmapPool.getInstance().put(source);
+                }
+            }
+        } else {
+            // vector and shape drawables are drawn right at the requested size
+            final Drawable drawable = ResourcesCompat.getDrawable(resources, drawableId, theme);
+            bitmap = BitmapHelper.rasterizeCenterCrop(drawable, size);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Looks up for already decoded image in memory cache.
+     * Found image is retained on behalf of the caller,
+     * who should {@link BitmapMemoryCache#release(Bitmap)} it afterwards.
+     * @return image or null if it has not been decoded yet or has been evicted
+     */
+    @Nullable
+    @MainThread
+    static Bitmap getCached(@NonNull Resources resources,
+                            @Nullable Resources.Theme theme,
+                            @DrawableRes int drawableId,
+                            @IntRange(from = 1) int size) {
+        return BitmapMemoryCache.getInstance().acquire(cacheKey(resources, theme, drawableId, size));
+    }
+
+    /**
+     * Returns memory cache key of square center cropped image.
+     * Night mode is always a part of the key, as resources could have night variants.
+     * Theme is a part of the key only for drawables inflated from xml, bitmaps are shared by all themes.
+     * @param theme theme the image is inflated with
+     */
+    @NonNull
+    static BitmapMemoryCache.Key cacheKey(@NonNull Resources resources,
+                                          @Nullable Resources.Theme theme,
+                                          @DrawableRes int drawableId,
+                                          int size) {
+        final int themeId = theme != null && isXmlDrawable(resources, drawableId)
+                ? System.identityHashCode(theme) : 0;
+        return new BitmapMemoryCache.Key(drawableId, size, size,
+                Bitmap.Config.ARGB_8888, BitmapMemoryCache.TRANSFORMATION_CENTER_CROP,
+                resources.getConfiguration().uiMode & Configuration.UI_MODE_NIGHT_MASK, themeId);
+    }
+
+    /**
+     * Checks whether drawable is inflated from xml, like vector or shape drawables are.
+     * Resource is looked up only once per drawable, so it is cheap enough for the main thread.
+     */
+    private static boolean isXmlDrawable(@NonNull Resources resources, @DrawableRes int drawableId) {
+        synchronized (XML_DRAWABLES) {
+            final int index = XML_DRAWABLES.indexOfKey(drawableId);
+            if (index >= 0) {
+                return XML_DRAWABLES.valueAt(index);
+            }
+        }
+
+        boolean isXml;
+        try {
+            final TypedValue value = new TypedValue();
+            resources.getValue(drawableId, value, true);
+            isXml = value.string != null && value.string.toString().endsWith(".xml");
+        } catch (Resources.NotFoundException e) {
+            isXml = false;
+        }
+
+        synchronized (XML_DRAWABLES) {
+            XML_DRAWABLES.put(drawableId, isXml);
+        }
+        return isXml;
+    }
+
+    /**
+     * Single image loading request.
+     */
+    static final class Request implements Runnable {
+
+        @NonNull
+        private final Resources resources;
+        @Nullable
+        private final Resources.Theme theme;
+        @Nullable
+        private final BitmapDiskCache diskCache;
+        @DrawableRes
+        private final int drawableId;
+        private final int size;
+        @NonNull
+        private final Callback callback;
+
+        @Nullable
+        private volatile Future<?> future;
+        private volatile boolean isCancelled;
+
+        private Request(@NonNull Resources resources,
+                        @Nullable Resources.Theme theme,
+                        @Nullable BitmapDiskCache diskCache,
+                        @DrawableRes int drawableId,
+                        int size,
+                        @NonNull Callback callback) {
+            this.resources = resources;
+            this.theme = theme;
+            this.diskCache = diskCache;
+            this.drawableId = drawableId;
+            this.size = size;
+            this.callback = callback;
+        }
+
+        @Override
+        @WorkerThread
+        public void run() {
+            if (isCancelled) {
+                return;
+            }
+
+            final Bitmap bitmap = decode(resources, theme, diskCache, drawableId, size);
+
+            MAIN_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled) {
+                        callback.onImageLoaded(Request.this, bitmap);
+                    } else if (bitmap != null) {
+                        BitmapMemoryCache.getInstance().release(bitmap);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Cancels request, callback will not be called after this method returns
+         * if it is called from the main thread.
+         */
+        @MainThread
+        void cancel() {
+            isCancelled = true;
+
+            final Future<?> future = this.future;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package github.com.st235.chiplayout;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.FloatRange;
+import androidx.annotation.IntRange;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Px;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes images of items which are about to be shown by {@link CircularImageView}s,
+ * so views find them in {@link BitmapMemoryCache} once they are bound.
+ *
+ * Clients pass the images around the viewport together with their distance to it
+ * on every scroll. Images closer to the viewport are decoded first, queued images
+ * which went out of the passed range are cancelled. Images are decoded in parallel
+ * by a pool sized to the amount of cores, leaving one core for the main thread.
+ */
+public final class ImagePrefetcher {
+
+    private static final int THREADS_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ThreadPoolExecutor EXECUTOR =
+            new ThreadPoolExecutor(THREADS_COUNT, THREADS_COUNT, 0L, TimeUnit.MILLISECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ImagePrefetcher-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        // executor hands tasks straight to new threads until all core ones are started,
+        // so they are started upfront and every task goes through the priority queue,
+        // idle threads still take tasks as they come, so tasks are also submitted by distance
+        EXECUTOR.prestartAllCoreThreads();
+    }
+
+    @NonNull
+    private final Resources resources;
+    @Nullable
+    private final Resources.Theme theme;
+    @NonNull
+    private final BitmapDiskCache diskCache;
+    @Px
+    private final int size;
+
+    /**
+     * Scheduled tasks by drawable, accessed only on the main thread.
+     */
+    private final Map<Integer, Task> tasks = new HashMap<>();
+
+    /**
+     * Images decoded by prefetcher which have not been shown yet, guarded by itself.
+     */
+    private final Set<Integer> unusedDecodes = new HashSet<>();
+
+    private final AtomicInteger decodeCount = new AtomicInteger();
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger wastedCount = new AtomicInteger();
+    private final AtomicInteger cancelledCount = new AtomicInteger();
+
+    private long taskSequence;
+
+    /**
+     * Creates new prefetcher
+     * @param context to load images from
+     * @param size side of the views which will show images, ie max of their width and height
+     */
+    public ImagePrefetcher(@NonNull Context context, @Px @IntRange(from = 1) int size) {
+        this.resources = context.getResources();
+        this.theme = context.getTheme();
+        this.diskCache = BitmapDiskCache.getInstance(context);
+        this.size = size;
+    }
+
+    /**
+     * Replaces the range of prefetched images.
+     * Images which are already in memory cache are skipped, queued images which are
+     * not in the range anymore are cancelled, the rest are queued by their distance.
+     * @param drawableIds images of items around the viewport
+     * @param distances distances of the items to the viewport in any units, for example rows or pixels,
+     *                  0 for visible items, should be of the same length as drawableIds
+     */
+    @MainThread
+    public void prefetch(@NonNull int[] drawableIds, @NonNull int[] distances) {
+        if (drawableIds.length != distances.length) {
+            throw new IllegalArgumentException("Every image should have a distance");
+        }
+
+        final Map<Integer, Integer> range = new HashMap<>(drawableIds.length * 2);
+        for (int i = 0; i < drawableIds.length; i++) {
+            final Integer distance = range.get(drawableIds[i]);
+            if (distance == null || distance > distances[i]) {
+                range.put(drawableIds[i], Math.max(0, distances[i]));
+            }
+        }
+
+        updateUsage(range);
+
+        final Iterator<Task> iterator = tasks.values().iterator();
+        while (iterator.hasNext()) {
+            final Task task = iterator.next();
+            final Integer distance = range.get(task.drawableId);
+
+            if (task.isFinished) {
+                iterator.remove();
+            } else if (distance == null) {
+                cancel(task);
+                iterator.remove();
+            } else if (distance != task.distance && EXECUTOR.remove(task)) {
+                // queued task is scheduled again below with the new priority
+                iterator.remove();
+            }
+        }
+
+        final BitmapMemoryCache memoryCache = BitmapMemoryCache.getInstance();
+        final List<Task> newTasks = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> entry : range.entrySet()) {
+            final int drawableId = entry.getKey();
+            if (tasks.containsKey(drawableId)
+                    || memoryCache.contains(ImageLoader.cacheKey(resources, theme, drawableId, size))) {
+                continue;
+            }
+
+            final Task task = new Task(drawableId, entry.getValue(), taskSequence++);
+            tasks.put(drawableId, task);
+            newTasks.add(task);
+        }
+
+        Collections.sort(newTasks);
+        for (Task task : newTasks) {
+            EXECUTOR.execute(task);
+        }
+    }
+
+    /**
+     * Cancels all queued images, for example once the list is gone.
+     * Prefetched images which have not been shown yet are counted as wasted.
+     */
+    @MainThread
+    public void cancelAll() {
+        for (Task task : tasks.values()) {
+            if (!task.isFinished) {
+                cancel(task);
+            }
+        }
+        tasks.clear();
+        updateUsage(new HashMap<Integer, Integer>());
+    }
+
+    /**
+     * @return amount of images decoded by prefetcher
+     */
+    public int getDecodeCount() {
+        return decodeCount.get();
+    }
+
+    /**
+     * @return amount of prefetched images which have been shown by a view
+     */
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return amount of prefetched images which went out of range or have been evicted before being shown
+     */
+    public int getWastedCount() {
+        return wastedCount.get();
+    }
+
+    /**
+     * @return amount of queued images cancelled before being decoded
+     */
+    public int getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /**
+     * @return part of settled prefetched images which have been shown, 0 if there are none yet
+     */
+    @FloatRange(from = 0.0, to = 1.0)
+    public float getHitRate() {
+        final int hits = hitCount.get();
+        final int settled = hits + wastedCount.get();
+        return settled == 0 ? 0F : (float) hits / settled;
+    }
+
+    private void cancel(@NonNull Task task) {
+        task.isCancelled = true;
+        if (EXECUTOR.remove(task)) {
+            cancelledCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Settles prefetched images which have not been shown yet.
+     * Image counts as shown if it is retained by a view during one of the prefetch calls,
+     * and as wasted if it has left the range or memory cache before that.
+     * @param range images which are still around the viewport
+     */
+    @MainThread
+    private void updateUsage(@NonNull Map<Integer, Integer> range) {
+        final BitmapMemoryCache memoryCache = BitmapMemoryCache.getInstance();
+
+        synchronized (unusedDecodes) {
+            final Iterator<Integer> iterator = unusedDecodes.iterator();
+            while (iterator.hasNext()) {
+                final int drawableId = iterator.next();
+                final BitmapMemoryCache.Key key = ImageLoader.cacheKey(resources, theme, drawableId, size);
+
+                if (memoryCache.isInUse(key)) {
+                    hitCount.incrementAndGet();
+                    iterator.remove();
+                } else if (!range.containsKey(drawableId) || !memoryCache.contains(key)) {
+                    wastedCount.incrementAndGet();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Decoding of a single image, tasks closer to the viewport go first.
+     */
+    private final class Task implements Runnable, Comparable<Task> {
+
+        @DrawableRes
+        private final int drawableId;
+        private final int distance;
+        private final long sequence;
+
+        private volatile boolean isCancelled;
+        private volatile boolean isFinished;
+
+        Task(@DrawableRes int drawableId, int distance, long sequence) {
+            this.drawableId = drawableId;
+            this.distance = distance;
+            this.sequence = sequence;
+        }
+
+        @Override
+        @WorkerThread
+        public void run() {
+            try {
+                // view could have loaded the image while the task has been queued
+                if (isCancelled
+                        || BitmapMemoryCache.getInstance().contains(ImageLoader.cacheKey(resources, theme, drawableId, size))) {
+                    return;
+                }
+
+                final Bitmap bitmap = ImageLoader.decode(resources, theme, diskCache, drawableId, size);
+                if (bitmap == null) {
+                    return;
+                }
+
+                // prefetcher does not show images, so it keeps them only in cache
+                BitmapMemoryCache.getInstance().release(bitmap);
+                decodeCount.incrementAndGet();
+                synchronized (unusedDecodes) {
+                    unusedDecodes.add(drawableId);
+                }
+            } finally {
+                isFinished = true;
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull Task other) {
+            if (distance != other.distance) {
+                return distance < other.distance ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
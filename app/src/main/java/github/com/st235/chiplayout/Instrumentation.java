@@ -0,0 +1,126 @@
+package github.com.st235.chiplayout;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.IntRange;
+import androidx.annotation.Nullable;
+
+/**
+ * Opt-in performance instrumentation of the library views.
+ *
+ * Instrumentation is disabled by default. Once a {@link Listener} is set,
+ * views report their costs to it, so they could be exported to any metrics backend.
+ * Trace sections visible in systrace and perfetto are enabled separately.
+ * While both are disabled views do not allocate anything nor read clocks for it.
+ */
+public final class Instrumentation {
+
+    /**
+     * Receives measurements of the library views.
+     * Callbacks are called synchronously, so they should be cheap.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the main thread after {@link ChipLayout} has been measured
+         * @param childrenMeasured amount of child views measured during the pass
+         * @param rowCount amount of rows produced by the pass
+         * @param durationNanos wall time of the pass
+         */
+        void onChipLayoutMeasured(@IntRange(from = 0) int childrenMeasured,
+                                  @IntRange(from = 0) int rowCount,
+                                  long durationNanos);
+
+        /**
+         * Called on the main thread after {@link ChipLayout} has been laid out
+         * @param childrenLaidOut amount of child views laid out during the pass
+         * @param durationNanos wall time of the pass
+         */
+        void onChipLayoutLaidOut(@IntRange(from = 0) int childrenLaidOut,
+                                 long durationNanos);
+
+        /**
+         * Called on a background thread after {@link CircularImageView} image has been decoded
+         * @param drawableId identifier of the decoded drawable
+         * @param byteCount size of the decoded bitmap, 0 if decoding has failed
+         * @param durationNanos wall time of decoding
+         */
+        void onImageDecoded(@DrawableRes int drawableId,
+                            @IntRange(from = 0) int byteCount,
+                            long durationNanos);
+    }
+
+    @Nullable
+    private static volatile Listener listener;
+    private static volatile boolean isTracingEnabled;
+
+    private Instrumentation() {
+    }
+
+    /**
+     * Sets listener for measurements
+     * @param listener is a sink for measurements or null to disable them
+     */
+    public static void setListener(@Nullable Listener listener) {
+        Instrumentation.listener = listener;
+    }
+
+    /**
+     * Enables trace sections around measure, layout, draw and decoding of the library views.
+     */
+    public static void setTracingEnabled(boolean isEnabled) {
+        isTracingEnabled = isEnabled;
+    }
+
+    /**
+     * @return current listener or null if measurements are disabled
+     */
+    @Nullable
+    static Listener getListener() {
+        return listener;
+    }
+
+    static boolean isTracingEnabled() {
+        return isTracingEnabled;
+    }
+
+    /**
+     * @return current time for measurements or 0 if there is no one to report to
+     */
+    static long startTime(@Nullable Listener listener) {
+        return listener == null ? 0L : System.nanoTime();
+    }
+
+    /**
+     * @return time passed since the given start
+     */
+    static long elapsedSince(long startNanos) {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Helper for listeners which are interested only in some measurements.
+     */
+    public abstract static class SimpleListener implements Listener {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onChipLayoutMeasured(int childrenMeasured, int rowCount, long durationNanos) {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onChipLayoutLaidOut(int childrenLaidOut, long durationNanos) {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onImageDecoded(int drawableId, int byteCount, long durationNanos) {
+        }
+    }
+}
@@ -1,44 +1,60 @@
 package github.com.st235.chiplayout;
 
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.view.ViewGroup;
-import android.widget.LinearLayout;
-import android.widget.TextView;
 
-import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.Px;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.appcompat.view.ContextThemeWrapper;
 import androidx.appcompat.widget.AppCompatImageView;
 import androidx.appcompat.widget.Toolbar;
 
+import java.util.Arrays;
+
 public class MainActivity extends AppCompatActivity {
 
     @Px
     private static final int PROFILE_PICTURE_SIZE = 512;
 
+    @Nullable
+    private Bitmap feedBitmap;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        BitmapMemoryCache.getInstance().registerComponentCallbacks(this);
+
         Toolbar toolbar = findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
 
         AppCompatImageView feedImage = findViewById(R.id.insta_image);
-        feedImage.setImageBitmap(BitmapHelper.decodeSampledBitmapFromResource(getResources(),
-                R.drawable.cat2, PROFILE_PICTURE_SIZE, PROFILE_PICTURE_SIZE));
+        feedBitmap = BitmapHelper.decodeSampledBitmapFromResource(this,
+                R.drawable.cat2, PROFILE_PICTURE_SIZE, PROFILE_PICTURE_SIZE);
+        // feed image stays empty if the resource could not be decoded
+        if (feedBitmap != null) {
+            feedImage.setImageBitmap(feedBitmap);
+        }
 
         ChipLayout tagsChipLayout = findViewById(R.id.tag_layout);
         String[] tags = getResources().getStringArray(R.array.cats_tags);
 
-        for (String tag: tags) {
-            addChildTag(tagsChipLayout, tag);
+        tagsChipLayout.streamTags(Arrays.asList(tags).iterator(),
+                R.style.ChipViewTextAppearance, Dimens.dpToPx(2));
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (feedBitmap != null) {
+            BitmapMemoryCache.getInstance().release(feedBitmap);
+            feedBitmap = null;
         }
+        super.onDestroy();
     }
 
     @Override
@@ -58,21 +74,6 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void addChildTag(@NonNull ViewGroup tagLayout,
-                             @NonNull String tag) {
-        TextView tagView =
-                new TextView(new ContextThemeWrapper(this, R.style.ChipViewTextAppearance));
-        tagView.setText(tag);
-
-        LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(
-                ViewGroup.LayoutParams.WRAP_CONTENT,
-                ViewGroup.LayoutParams.WRAP_CONTENT);
-
-        params.setMargins(Dimens.dpToPx(2), Dimens.dpToPx(2), Dimens.dpToPx(2), Dimens.dpToPx(2));
-
-        tagLayout.addView(tagView, params);
-    }
-
     private void shareArticle() {
         String shareBody = getString(R.string.share_text);
         Intent sharingIntent = new Intent(android.content.Intent.ACTION_SEND);
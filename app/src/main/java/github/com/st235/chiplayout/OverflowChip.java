@@ -0,0 +1,117 @@
+package github.com.st235.chiplayout;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * Compact "+N" chip drawn by {@link ChipLayout} in place of the chips
+ * which did not fit into the max amount of rows.
+ */
+final class OverflowChip {
+
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    @NonNull
+    private final ChipStyle style;
+    @NonNull
+    private final TextMetricsCache.Metrics metrics;
+
+    private final int chipHeight;
+    private final int baseline;
+
+    @NonNull
+    private String label = "";
+    private int hiddenCount = -1;
+    private int textWidth;
+
+    OverflowChip(@NonNull ChipStyle style) {
+        this.style = style;
+
+        paint.setTextSize(style.getTextSize());
+        paint.setColor(style.getTextColor());
+        paint.setTypeface(style.getTypeface());
+
+        metrics = TextMetricsCache.get(style.getTextSize(), style.getTypeface());
+        final int fontTop = (int) Math.floor(metrics.getTop());
+        final int fontBottom = (int) Math.ceil(metrics.getBottom());
+        chipHeight = fontBottom - fontTop + style.getPaddingTop() + style.getPaddingBottom();
+        baseline = style.getPaddingTop() - fontTop;
+    }
+
+    @NonNull
+    ChipStyle getStyle() {
+        return style;
+    }
+
+    /**
+     * Updates amount of hidden chips, label is rebuilt only if amount has changed.
+     */
+    void setHiddenCount(@IntRange(from = 1) int hiddenCount) {
+        if (this.hiddenCount == hiddenCount) {
+            return;
+        }
+
+        this.hiddenCount = hiddenCount;
+        label = "+" + hiddenCount;
+        textWidth = (int) Math.ceil(metrics.measureText(label));
+    }
+
+    /**
+     * @return amount of hidden chips the label shows
+     */
+    int getHiddenCount() {
+        return hiddenCount;
+    }
+
+    /**
+     * @return width with paddings and margins
+     */
+    int getOuterWidth() {
+        return textWidth + style.getPaddingLeft() + style.getPaddingRight() + style.getMargin() * 2;
+    }
+
+    /**
+     * @return height with paddings and margins
+     */
+    int getOuterHeight() {
+        return chipHeight + style.getMargin() * 2;
+    }
+
+    /**
+     * Calculates bounds of the chip background, ie without margins
+     * @param left left of the chip outer bounds, ie with margins
+     * @param top top of the chip outer bounds, ie with margins
+     */
+    void getChipBounds(int left, int top, @NonNull Rect outBounds) {
+        final int chipLeft = left + style.getMargin();
+        final int chipTop = top + style.getMargin();
+        outBounds.set(chipLeft, chipTop,
+                chipLeft + textWidth + style.getPaddingLeft() + style.getPaddingRight(),
+                chipTop + chipHeight);
+    }
+
+    /**
+     * Draws chip
+     * @param left left of the chip outer bounds, ie with margins
+     * @param top top of the chip outer bounds, ie with margins
+     */
+    void draw(@NonNull Canvas canvas, int left, int top) {
+        final int chipLeft = left + style.getMargin();
+        final int chipTop = top + style.getMargin();
+
+        final Drawable background = style.getBackground();
+        if (background != null) {
+            background.setBounds(chipLeft, chipTop,
+                    chipLeft + textWidth + style.getPaddingLeft() + style.getPaddingRight(),
+                    chipTop + chipHeight);
+            background.draw(canvas);
+        }
+
+        canvas.drawText(label, chipLeft + style.getPaddingLeft(), chipTop + baseline, paint);
+    }
+}
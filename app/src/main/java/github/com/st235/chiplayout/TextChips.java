@@ -0,0 +1,204 @@
+package github.com.st235.chiplayout;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Plain text chips drawn directly on {@link ChipLayout} canvas.
+ *
+ * Labels are measured through {@link TextMetricsCache}, so every unique label
+ * is measured once per process. All chips share a single {@link Paint}
+ * and a single background drawable.
+ */
+final class TextChips {
+
+    static final int NO_CHIP = -1;
+
+    private static final int[] STATE_PRESSED = {
+            android.R.attr.state_enabled,
+            android.R.attr.state_pressed
+    };
+    private static final int[] STATE_DEFAULT = {
+            android.R.attr.state_enabled
+    };
+
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Rect clipBounds = new Rect();
+    private final Rect chipBounds = new Rect();
+
+    @NonNull
+    private final ChipStyle style;
+
+    @NonNull
+    private String[] labels = new String[0];
+    @NonNull
+    private int[] textWidths = new int[0];
+
+    @NonNull
+    private final TextMetricsCache.Metrics metrics;
+
+    private final int chipHeight;
+    private final int baseline;
+
+    TextChips(@NonNull ChipStyle style) {
+        this.style = style;
+
+        paint.setTextSize(style.getTextSize());
+        paint.setColor(style.getTextColor());
+        paint.setTypeface(style.getTypeface());
+
+        metrics = TextMetricsCache.get(style.getTextSize(), style.getTypeface());
+        final int fontTop = (int) Math.floor(metrics.getTop());
+        final int fontBottom = (int) Math.ceil(metrics.getBottom());
+        chipHeight = fontBottom - fontTop + style.getPaddingTop() + style.getPaddingBottom();
+        baseline = style.getPaddingTop() - fontTop;
+    }
+
+    /**
+     * Replaces labels, measuring only the ones which have not been seen before.
+     * @param labels new labels
+     */
+    void setLabels(@NonNull List<String> labels) {
+        final int count = labels.size();
+        this.labels = labels.toArray(new String[count]);
+        this.textWidths = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            textWidths[i] = (int) Math.ceil(metrics.measureText(this.labels[i]));
+        }
+    }
+
+    @NonNull
+    ChipStyle getStyle() {
+        return style;
+    }
+
+    int getCount() {
+        return labels.length;
+    }
+
+    @NonNull
+    String getLabel(int index) {
+        return labels[index];
+    }
+
+    /**
+     * Fills chips outer sizes, ie with margins.
+     * @param widths destination for widths, should fit all chips
+     * @param heights destination for heights, should fit all chips
+     */
+    void getSizes(@NonNull int[] widths, @NonNull int[] heights) {
+        final int horizontalExtra = style.getPaddingLeft() + style.getPaddingRight()
+                + style.getMargin() * 2;
+        final int outerHeight = chipHeight + style.getMargin() * 2;
+
+        for (int i = 0; i < labels.length; i++) {
+            widths[i] = textWidths[i] + horizontalExtra;
+            heights[i] = outerHeight;
+        }
+    }
+
+    /**
+     * Calculates chip bounds without margins.
+     * @param lineBreaker results of breaking chips into rows
+     * @param originX left of the content area
+     * @param originY top of the content area
+     * @param out destination rect
+     */
+    void getChipBounds(@NonNull FlowLineBreaker lineBreaker,
+                       int index,
+                       int originX,
+                       int originY,
+                       @NonNull Rect out) {
+        final int left = originX + lineBreaker.getXs()[index] + style.getMargin();
+        final int top = originY + lineBreaker.getYs()[index] + style.getMargin();
+
+        out.set(left, top,
+                left + textWidths[index] + style.getPaddingLeft() + style.getPaddingRight(),
+                top + chipHeight);
+    }
+
+    /**
+     * Draws only chips from the rows which intersect canvas clip.
+     * @param lineBreaker results of breaking chips into rows
+     * @param originX left of the content area
+     * @param originY top of the content area
+     * @param pressedChip index of the chip to be drawn in pressed state or {@link #NO_CHIP}
+     */
+    void draw(@NonNull Canvas canvas,
+              @NonNull FlowLineBreaker lineBreaker,
+              int originX,
+              int originY,
+              int pressedChip) {
+        final int rowCount = lineBreaker.getRowCount();
+        if (rowCount == 0 || lineBreaker.getItemCount() != labels.length
+                || !canvas.getClipBounds(clipBounds)) {
+            return;
+        }
+
+        final int[] rowStarts = lineBreaker.getRowStarts();
+        final int firstRow = lineBreaker.findRowAt(clipBounds.top - originY);
+        final int lastRow = lineBreaker.findRowAt(clipBounds.bottom - originY);
+
+        final Drawable background = style.getBackground();
+        final Rect bounds = chipBounds;
+
+        for (int i = rowStarts[firstRow]; i < rowStarts[lastRow + 1]; i++) {
+            getChipBounds(lineBreaker, i, originX, originY, bounds);
+
+            if (background != null) {
+                background.setState(i == pressedChip ? STATE_PRESSED : STATE_DEFAULT);
+                background.setBounds(bounds);
+                background.draw(canvas);
+            }
+
+            canvas.drawText(labels[i],
+                    bounds.left + style.getPaddingLeft(),
+                    bounds.top + baseline,
+                    paint);
+        }
+    }
+
+    /**
+     * Looks up for a chip under the given point.
+     * @param lineBreaker results of breaking chips into rows
+     * @param x horizontal offset relative to the content area
+     * @param y vertical offset relative to the content area
+     * @return index of the chip or {@link #NO_CHIP}
+     */
+    int findChipAt(@NonNull FlowLineBreaker lineBreaker, int x, int y) {
+        if (lineBreaker.getRowCount() == 0 || lineBreaker.getItemCount() != labels.length) {
+            return NO_CHIP;
+        }
+
+        final int row = lineBreaker.findRowAt(y);
+        final int rowTop = lineBreaker.getRowTops()[row];
+        if (y < rowTop || y >= rowTop + lineBreaker.getRowHeights()[row]) {
+            return NO_CHIP;
+        }
+
+        final int[] xs = lineBreaker.getXs();
+        int low = lineBreaker.getRowStarts()[row];
+        int high = lineBreaker.getRowStarts()[row + 1] - 1;
+
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (xs[mid] <= x) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        final int chipLeft = xs[low] + style.getMargin();
+        final int chipRight = chipLeft + textWidths[low]
+                + style.getPaddingLeft() + style.getPaddingRight();
+        return x >= chipLeft && x < chipRight ? low : NO_CHIP;
+    }
+}
@@ -0,0 +1,209 @@
+package github.com.st235.chiplayout;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Px;
+
+/**
+ * Process-wide cache of text measurements.
+ *
+ * Measurements are grouped by text style, ie text size and typeface,
+ * so a given label of a given style is measured only once per process.
+ * Other paint properties, like text scale or letter spacing, are not taken into account.
+ * Only a few recently used styles are kept, clients which still hold measurements
+ * of an evicted style keep using them.
+ */
+final class TextMetricsCache {
+
+    /**
+     * Max amount of styles remembered, as text sizes change with font scale and density.
+     */
+    private static final int MAX_STYLES = 16;
+
+    /**
+     * Max amount of widths remembered per style.
+     */
+    private static final int MAX_WIDTHS_PER_STYLE = 512;
+
+    /**
+     * Boxed indices of width slots, boxed once, so cache lookups and inserts do not box anything.
+     */
+    private static final Integer[] SLOTS = new Integer[MAX_WIDTHS_PER_STYLE];
+
+    static {
+        for (int i = 0; i < SLOTS.length; i++) {
+            SLOTS[i] = i;
+        }
+    }
+
+    private static final LruCache<StyleKey, Metrics> STYLES = new LruCache<>(MAX_STYLES);
+
+    private TextMetricsCache() {
+    }
+
+    /**
+     * Returns measurements of the given text style, shared by all clients.
+     * Should not be called in hot paths, clients are expected to keep the result
+     * until their text style changes.
+     */
+    @NonNull
+    static Metrics get(@Px float textSize, @Nullable Typeface typeface) {
+        final StyleKey key = new StyleKey(textSize, typeface);
+
+        synchronized (STYLES) {
+            Metrics metrics = STYLES.get(key);
+            if (metrics == null) {
+                metrics = new Metrics(textSize, typeface);
+                STYLES.put(key, metrics);
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * Font metrics and text widths of a single text style.
+     * Widths are kept in a primitive array, texts are mapped to their slots in it.
+     */
+    static final class Metrics {
+
+        private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+        /**
+         * Widths, slots and free slots are guarded by this.
+         */
+        private final float[] widths = new float[MAX_WIDTHS_PER_STYLE];
+        private final int[] freeSlots = new int[MAX_WIDTHS_PER_STYLE];
+        private int freeSlotCount;
+        private int nextSlot;
+
+        private final LruCache<String, Integer> slots = new LruCache<String, Integer>(MAX_WIDTHS_PER_STYLE) {
+            @Override
+            protected void entryRemoved(boolean evicted,
+                                        @NonNull String key,
+                                        @NonNull Integer oldValue,
+                                        @Nullable Integer newValue) {
+                if (oldValue != newValue) {
+                    freeSlots[freeSlotCount++] = oldValue;
+                }
+            }
+        };
+
+        private final float top;
+        private final float ascent;
+        private final float descent;
+        private final float bottom;
+
+        private Metrics(@Px float textSize, @Nullable Typeface typeface) {
+            paint.setTextSize(textSize);
+            paint.setTypeface(typeface);
+
+            final Paint.FontMetrics fontMetrics = paint.getFontMetrics();
+            top = fontMetrics.top;
+            ascent = fontMetrics.ascent;
+            descent = fontMetrics.descent;
+            bottom = fontMetrics.bottom;
+        }
+
+        /**
+         * @return width of the text measured only on the first request
+         */
+        float measureText(@NonNull String text) {
+            synchronized (this) {
+                final Integer slot = slots.get(text);
+                if (slot != null) {
+                    return widths[slot];
+                }
+            }
+
+            final float width;
+            synchronized (paint) {
+                width = paint.measureText(text);
+            }
+
+            synchronized (this) {
+                // another thread could have measured the same text meanwhile
+                if (slots.get(text) == null) {
+                    final int slot = obtainSlot();
+                    widths[slot] = width;
+                    slots.put(text, SLOTS[slot]);
+                }
+            }
+            return width;
+        }
+
+        /**
+         * Returns unused slot, the least recently used width is evicted if there are none
+         */
+        private int obtainSlot() {
+            if (freeSlotCount == 0 && nextSlot == MAX_WIDTHS_PER_STYLE) {
+                // evicted width frees its slot
+                slots.trimToSize(MAX_WIDTHS_PER_STYLE - 1);
+            }
+            return freeSlotCount > 0 ? freeSlots[--freeSlotCount] : nextSlot++;
+        }
+
+        /**
+         * @return distance above the baseline to the highest glyph, negative
+         */
+        float getTop() {
+            return top;
+        }
+
+        /**
+         * @return recommended distance above the baseline, negative
+         */
+        float getAscent() {
+            return ascent;
+        }
+
+        /**
+         * @return recommended distance below the baseline, positive
+         */
+        float getDescent() {
+            return descent;
+        }
+
+        /**
+         * @return distance below the baseline to the lowest glyph, positive
+         */
+        float getBottom() {
+            return bottom;
+        }
+    }
+
+    /**
+     * Identifies text style
+     */
+    private static final class StyleKey {
+
+        private final float textSize;
+        @Nullable
+        private final Typeface typeface;
+
+        StyleKey(float textSize, @Nullable Typeface typeface) {
+            this.textSize = textSize;
+            this.typeface = typeface;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            StyleKey key = (StyleKey) o;
+            return Float.compare(key.textSize, textSize) == 0
+                    && (typeface == null ? key.typeface == null : typeface.equals(key.typeface));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Float.floatToIntBits(textSize);
+            result = 31 * result + (typeface != null ? typeface.hashCode() : 0);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package github.com.st235.chiplayout;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.Looper;
+import android.view.ViewGroup;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks that drawing of a laid out {@link CircularImageView} does not allocate.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CircularImageViewDrawTest {
+
+    private static final int SIZE = 64;
+    private static final int WARM_UP_DRAWS = 100;
+    private static final int DRAWS = 1_000;
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private Activity activity;
+    private CircularImageView view;
+
+    @Before
+    public void setUp() {
+        threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        activity = Robolectric.buildActivity(Activity.class).setup().get();
+
+        // the view finds its image in memory cache once laid out, so no decoding is involved
+        final Bitmap image = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        final BitmapMemoryCache cache = BitmapMemoryCache.getInstance();
+        cache.release(cache.putAndRetain(ImageLoader.cacheKey(activity.getResources(), activity.getTheme(),
+                R.drawable.avatar, SIZE), image));
+
+        view = new CircularImageView(activity);
+        view.setExtraText("AB");
+        view.setDrawableResource(R.drawable.avatar);
+        activity.setContentView(view, new ViewGroup.LayoutParams(SIZE, SIZE));
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    @After
+    public void tearDown() {
+        activity.finish();
+        BitmapMemoryCache.getInstance().onLowMemory();
+    }
+
+    @Test
+    public void onDraw_withImage_doesNotAllocate() {
+        final CountingCanvas canvas = new CountingCanvas();
+
+        assertEquals(0, allocatedBytesDuringDraws(canvas));
+        assertEquals(WARM_UP_DRAWS + DRAWS, canvas.circleCount);
+        assertEquals(WARM_UP_DRAWS + DRAWS, canvas.textCount);
+    }
+
+    @Test
+    public void onDraw_withComposite_doesNotAllocate() {
+        view.setCompositeCacheEnabled(true);
+        final CountingCanvas canvas = new CountingCanvas();
+
+        assertEquals(0, allocatedBytesDuringDraws(canvas));
+        assertEquals(WARM_UP_DRAWS + DRAWS, canvas.bitmapCount);
+    }
+
+    /**
+     * Draws view several times to warm it up and then measures allocations of the following draws
+     * @return bytes allocated by the measured draws, excluding the cost of measuring itself
+     */
+    private long allocatedBytesDuringDraws(@NonNull Canvas canvas) {
+        for (int i = 0; i < WARM_UP_DRAWS; i++) {
+            view.onDraw(canvas);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+
+        final long overheadStart = threadBean.getThreadAllocatedBytes(threadId);
+        final long overheadEnd = threadBean.getThreadAllocatedBytes(threadId);
+
+        final long start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < DRAWS; i++) {
+            view.onDraw(canvas);
+        }
+        final long end = threadBean.getThreadAllocatedBytes(threadId);
+
+        return (end - start) - (overheadEnd - overheadStart);
+    }
+
+    /**
+     * Canvas which only counts draw calls, so measured allocations belong to the view.
+     */
+    private static final class CountingCanvas extends Canvas {
+
+        private int circleCount;
+        private int textCount;
+        private int bitmapCount;
+
+        @Override
+        public void drawCircle(float cx, float cy, float radius, @NonNull Paint paint) {
+            circleCount++;
+        }
+
+        @Override
+        public void drawText(@NonNull String text, float x, float y, @NonNull Paint paint) {
+            textCount++;
+        }
+
+        @Override
+        public void drawBitmap(@NonNull Bitmap bitmap, float left, float top, Paint paint) {
+            bitmapCount++;
+        }
+    }
+}
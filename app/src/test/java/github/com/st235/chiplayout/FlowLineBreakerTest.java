@@ -0,0 +1,352 @@
+package github.com.st235.chiplayout;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link FlowLineBreaker} with straightforward reference implementations.
+ */
+public class FlowLineBreakerTest {
+
+    private static final int ITERATIONS = 500;
+    private static final int MAX_ITEMS = 40;
+    private static final int MAX_WIDTH = 100;
+
+    private final Random random = new Random(42);
+    private final FlowLineBreaker lineBreaker = new FlowLineBreaker();
+
+    @Test
+    public void breakLines_emptyList_producesNoRows() {
+        lineBreaker.breakLines(new int[0], new int[0], 0, MAX_WIDTH);
+
+        assertEquals(0, lineBreaker.getItemCount());
+        assertEquals(0, lineBreaker.getRowCount());
+        assertEquals(0, lineBreaker.getWidth());
+        assertEquals(0, lineBreaker.getHeight());
+        assertEquals(0, lineBreaker.getRowStarts()[0]);
+    }
+
+    @Test
+    public void breakLinesBalanced_emptyList_producesNoRows() {
+        lineBreaker.breakLinesBalanced(new int[0], new int[0], 0, MAX_WIDTH);
+
+        assertEquals(0, lineBreaker.getRowCount());
+        assertEquals(0, lineBreaker.getWidth());
+        assertEquals(0, lineBreaker.getHeight());
+    }
+
+    @Test
+    public void breakLines_chipWiderThanLine_takesRowOfItsOwn() {
+        final int[] widths = { 30, MAX_WIDTH + 50, 30 };
+        final int[] heights = { 10, 20, 10 };
+
+        lineBreaker.breakLines(widths, heights, widths.length, MAX_WIDTH);
+
+        assertEquals(3, lineBreaker.getRowCount());
+        assertArrayEquals(new int[] { 0, 1, 2, 3 }, Arrays.copyOf(lineBreaker.getRowStarts(), 4));
+        assertEquals(0, lineBreaker.getXs()[1]);
+        assertEquals(10, lineBreaker.getYs()[1]);
+        assertEquals(MAX_WIDTH + 50, lineBreaker.getWidth());
+        assertEquals(40, lineBreaker.getHeight());
+    }
+
+    @Test
+    public void breakLinesBalanced_chipWiderThanLine_takesRowOfItsOwn() {
+        final int[] widths = { 30, MAX_WIDTH + 50, 30 };
+        final int[] heights = { 10, 20, 10 };
+
+        lineBreaker.breakLinesBalanced(widths, heights, widths.length, MAX_WIDTH);
+
+        assertEquals(3, lineBreaker.getRowCount());
+        assertArrayEquals(new int[] { 0, 1, 2, 3 }, Arrays.copyOf(lineBreaker.getRowStarts(), 4));
+    }
+
+    @Test
+    public void breakLines_chipEqualToLine_fitsIntoRow() {
+        final int[] widths = { MAX_WIDTH, 40, 60 };
+        final int[] heights = { 10, 10, 10 };
+
+        lineBreaker.breakLines(widths, heights, widths.length, MAX_WIDTH);
+
+        assertEquals(2, lineBreaker.getRowCount());
+        assertArrayEquals(new int[] { 0, 1, 3 }, Arrays.copyOf(lineBreaker.getRowStarts(), 3));
+        assertEquals(40, lineBreaker.getXs()[2]);
+        assertEquals(MAX_WIDTH, lineBreaker.getWidth());
+    }
+
+    @Test
+    public void breakLines_skippedItems_keepOffsetsMonotone() {
+        final int[] widths = { 40, FlowLineBreaker.SKIP, 40, FlowLineBreaker.SKIP, 40 };
+        final int[] heights = { 10, 0, 10, 0, 10 };
+
+        lineBreaker.breakLines(widths, heights, widths.length, MAX_WIDTH);
+
+        assertArrayEquals(new int[] { 0, 40, 40, 80, 0 }, Arrays.copyOf(lineBreaker.getXs(), 5));
+        assertArrayEquals(new int[] { 0, 4, 5 }, Arrays.copyOf(lineBreaker.getRowStarts(), 3));
+    }
+
+    @Test
+    public void breakLines_randomWidths_matchesReference() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            final int count = random.nextInt(MAX_ITEMS + 1);
+            final int[] widths = randomWidths(count);
+            final int[] heights = randomHeights(count);
+
+            lineBreaker.breakLines(widths, heights, count, MAX_WIDTH);
+
+            assertMatchesGreedy(widths, heights, count, MAX_WIDTH);
+        }
+    }
+
+    @Test
+    public void breakLines_incrementalChanges_matchFullPass() {
+        int count = random.nextInt(MAX_ITEMS + 1);
+        int[] widths = randomWidths(count);
+        int[] heights = randomHeights(count);
+        lineBreaker.breakLines(widths, heights, count, MAX_WIDTH);
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            // replaces a random range of items with a random amount of new ones
+            final int dirtyStart = random.nextInt(count + 1);
+            final int removed = random.nextInt(count - dirtyStart + 1);
+            final int inserted = random.nextInt(5);
+            final int newCount = count - removed + inserted;
+
+            final int[] newWidths = new int[newCount];
+            final int[] newHeights = new int[newCount];
+            System.arraycopy(widths, 0, newWidths, 0, dirtyStart);
+            System.arraycopy(heights, 0, newHeights, 0, dirtyStart);
+            System.arraycopy(randomWidths(inserted), 0, newWidths, dirtyStart, inserted);
+            System.arraycopy(randomHeights(inserted), 0, newHeights, dirtyStart, inserted);
+            System.arraycopy(widths, dirtyStart + removed, newWidths, dirtyStart + inserted,
+                    count - dirtyStart - removed);
+            System.arraycopy(heights, dirtyStart + removed, newHeights, dirtyStart + inserted,
+                    count - dirtyStart - removed);
+
+            count = newCount;
+            widths = newWidths;
+            heights = newHeights;
+
+            lineBreaker.breakLines(widths, heights, count, MAX_WIDTH, dirtyStart, dirtyStart + inserted);
+
+            assertMatchesGreedy(widths, heights, count, MAX_WIDTH);
+        }
+    }
+
+    @Test
+    public void breakLinesBalanced_randomWidths_matchesReferenceCost() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            final int count = random.nextInt(MAX_ITEMS + 1);
+            final int[] widths = randomWidths(count);
+            final int[] heights = randomHeights(count);
+
+            lineBreaker.breakLinesBalanced(widths, heights, count, MAX_WIDTH);
+
+            assertRowsAreConsistent(widths, heights, count);
+            assertEquals(balancedCost(widths, count, MAX_WIDTH), rowsCost(widths, MAX_WIDTH));
+        }
+    }
+
+    @Test
+    public void breakLines_maxRowsCutoff_keepsFirstRows() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            final int count = random.nextInt(MAX_ITEMS + 1);
+            final int[] widths = randomWidths(count);
+            final int[] heights = randomHeights(count);
+
+            lineBreaker.breakLines(widths, heights, count, MAX_WIDTH);
+            final int rowCount = lineBreaker.getRowCount();
+            if (rowCount == 0) {
+                continue;
+            }
+
+            // layout measures children only until they fill max rows and breaks only them
+            final int maxRows = 1 + random.nextInt(rowCount);
+            final int cutoff = lineBreaker.getRowStarts()[maxRows];
+            final int[] rowStarts = Arrays.copyOf(lineBreaker.getRowStarts(), maxRows + 1);
+            final int[] xs = Arrays.copyOf(lineBreaker.getXs(), cutoff);
+            final int[] ys = Arrays.copyOf(lineBreaker.getYs(), cutoff);
+
+            lineBreaker.breakLines(widths, heights, cutoff, MAX_WIDTH);
+
+            assertEquals(maxRows, lineBreaker.getRowCount());
+            assertArrayEquals(rowStarts, Arrays.copyOf(lineBreaker.getRowStarts(), maxRows + 1));
+            assertArrayEquals(xs, Arrays.copyOf(lineBreaker.getXs(), cutoff));
+            assertArrayEquals(ys, Arrays.copyOf(lineBreaker.getYs(), cutoff));
+        }
+    }
+
+    /**
+     * Checks results of the breaker against the straightforward greedy breaking
+     */
+    private void assertMatchesGreedy(int[] widths, int[] heights, int count, int maxWidth) {
+        final int[] xs = new int[count];
+        final int[] ys = new int[count];
+        final int[] rowStarts = new int[count + 1];
+
+        int rowCount = 0;
+        int rowWidth = 0;
+        int rowHeight = 0;
+        int top = 0;
+        int width = 0;
+        boolean isRowEmpty = true;
+
+        for (int i = 0; i < count; i++) {
+            if (widths[i] != FlowLineBreaker.SKIP) {
+                if (!isRowEmpty && rowWidth + widths[i] > maxWidth) {
+                    width = Math.max(width, rowWidth);
+                    top += rowHeight;
+                    rowStarts[++rowCount] = i;
+                    rowWidth = 0;
+                    rowHeight = 0;
+                }
+                isRowEmpty = false;
+            }
+
+            xs[i] = rowWidth;
+            ys[i] = top;
+            if (widths[i] != FlowLineBreaker.SKIP) {
+                rowWidth += widths[i];
+                rowHeight = Math.max(rowHeight, heights[i]);
+            }
+        }
+
+        if (!isRowEmpty) {
+            width = Math.max(width, rowWidth);
+            top += rowHeight;
+            rowCount++;
+        }
+        rowStarts[rowCount] = count;
+
+        assertEquals(count, lineBreaker.getItemCount());
+        assertEquals(rowCount, lineBreaker.getRowCount());
+        assertEquals(width, lineBreaker.getWidth());
+        assertEquals(top, lineBreaker.getHeight());
+        assertArrayEquals(Arrays.copyOf(rowStarts, rowCount + 1),
+                Arrays.copyOf(lineBreaker.getRowStarts(), rowCount + 1));
+        assertArrayEquals(xs, Arrays.copyOf(lineBreaker.getXs(), count));
+        assertArrayEquals(ys, Arrays.copyOf(lineBreaker.getYs(), count));
+        assertRowsAreConsistent(widths, heights, count);
+    }
+
+    /**
+     * Checks that rows cover all items and offsets agree with rows
+     */
+    private void assertRowsAreConsistent(int[] widths, int[] heights, int count) {
+        final int rowCount = lineBreaker.getRowCount();
+        final int[] rowStarts = lineBreaker.getRowStarts();
+
+        // without rows every item is skipped and the only row start is the amount of items
+        assertEquals(rowCount == 0 ? count : 0, rowStarts[0]);
+        assertEquals(count, rowStarts[rowCount]);
+
+        int top = 0;
+        for (int r = 0; r < rowCount; r++) {
+            assertTrue(rowStarts[r] < rowStarts[r + 1]);
+            assertEquals(top, lineBreaker.getRowTops()[r]);
+
+            int x = 0;
+            int rowHeight = 0;
+            for (int i = rowStarts[r]; i < rowStarts[r + 1]; i++) {
+                assertEquals(x, lineBreaker.getXs()[i]);
+                assertEquals(top, lineBreaker.getYs()[i]);
+                if (widths[i] != FlowLineBreaker.SKIP) {
+                    x += widths[i];
+                    rowHeight = Math.max(rowHeight, heights[i]);
+                }
+            }
+
+            assertEquals(rowHeight, lineBreaker.getRowHeights()[r]);
+            top += rowHeight;
+        }
+        assertEquals(top, lineBreaker.getHeight());
+    }
+
+    /**
+     * @return cost of the current rows as defined by balanced breaking
+     */
+    private long rowsCost(int[] widths, int maxWidth) {
+        final int[] rowStarts = lineBreaker.getRowStarts();
+
+        long cost = 0;
+        for (int r = 0; r < lineBreaker.getRowCount(); r++) {
+            long rowWidth = 0;
+            boolean hasItems = false;
+            for (int i = rowStarts[r]; i < rowStarts[r + 1]; i++) {
+                if (widths[i] != FlowLineBreaker.SKIP) {
+                    rowWidth += Math.min(widths[i], maxWidth);
+                    hasItems = true;
+                }
+            }
+
+            assertTrue(hasItems);
+            assertTrue(rowWidth <= maxWidth);
+            cost += (maxWidth - rowWidth) * (maxWidth - rowWidth);
+        }
+        return cost;
+    }
+
+    /**
+     * @return minimal sum of squared free space over all breakings, quadratic dynamic programming
+     */
+    private static long balancedCost(int[] widths, int count, int maxWidth) {
+        final int[] items = new int[count];
+        int itemsCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (widths[i] != FlowLineBreaker.SKIP) {
+                items[itemsCount++] = Math.min(widths[i], maxWidth);
+            }
+        }
+
+        final long[] costs = new long[itemsCount + 1];
+        for (int end = 1; end <= itemsCount; end++) {
+            costs[end] = Long.MAX_VALUE;
+
+            long rowWidth = 0;
+            for (int start = end - 1; start >= 0; start--) {
+                rowWidth += items[start];
+                if (rowWidth > maxWidth) {
+                    break;
+                }
+
+                final long freeSpace = maxWidth - rowWidth;
+                costs[end] = Math.min(costs[end], costs[start] + freeSpace * freeSpace);
+            }
+        }
+        return costs[itemsCount];
+    }
+
+    /**
+     * @return widths which are mostly less than max width, with some skipped and too wide items
+     */
+    private int[] randomWidths(int count) {
+        final int[] widths = new int[count];
+        for (int i = 0; i < count; i++) {
+            final int kind = random.nextInt(10);
+            if (kind == 0) {
+                widths[i] = FlowLineBreaker.SKIP;
+            } else if (kind == 1) {
+                widths[i] = MAX_WIDTH + random.nextInt(MAX_WIDTH);
+            } else if (kind == 2) {
+                widths[i] = MAX_WIDTH;
+            } else {
+                widths[i] = 1 + random.nextInt(MAX_WIDTH / 2);
+            }
+        }
+        return widths;
+    }
+
+    private int[] randomHeights(int count) {
+        final int[] heights = new int[count];
+        for (int i = 0; i < count; i++) {
+            heights[i] = 1 + random.nextInt(20);
+        }
+        return heights;
+    }
+}
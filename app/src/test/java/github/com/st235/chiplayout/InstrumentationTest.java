@@ -0,0 +1,129 @@
+package github.com.st235.chiplayout;
+
+import android.app.Activity;
+import android.view.View;
+import android.widget.LinearLayout;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks measurements reported by {@link ChipLayout} to {@link Instrumentation.Listener}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class InstrumentationTest {
+
+    private static final int CHIP_WIDTH = 40;
+    private static final int CHIP_HEIGHT = 20;
+    private static final int LAYOUT_WIDTH = 100;
+    private static final int CHIPS_COUNT = 5;
+
+    private final FakeListener listener = new FakeListener();
+
+    private ChipLayout chipLayout;
+
+    @Before
+    public void setUp() {
+        final Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        chipLayout = new ChipLayout(activity);
+        for (int i = 0; i < CHIPS_COUNT; i++) {
+            chipLayout.addView(new View(activity), new LinearLayout.LayoutParams(CHIP_WIDTH, CHIP_HEIGHT));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Instrumentation.setListener(null);
+    }
+
+    @Test
+    public void measure_reportsMeasuredChildrenAndRows() {
+        Instrumentation.setListener(listener);
+
+        measure();
+
+        // two chips fit into a row
+        assertEquals(1, listener.measureCount);
+        assertEquals(CHIPS_COUNT, listener.childrenMeasured);
+        assertEquals(3, listener.rowCount);
+    }
+
+    @Test
+    public void measure_withSameConstraints_reportsNoMeasuredChildren() {
+        measure();
+        layout();
+        Instrumentation.setListener(listener);
+
+        chipLayout.requestLayout();
+        measure();
+
+        assertEquals(1, listener.measureCount);
+        assertEquals(0, listener.childrenMeasured);
+        assertEquals(3, listener.rowCount);
+    }
+
+    @Test
+    public void layout_reportsLaidOutChildren() {
+        Instrumentation.setListener(listener);
+
+        measure();
+        layout();
+
+        assertEquals(1, listener.layoutCount);
+        assertEquals(CHIPS_COUNT, listener.childrenLaidOut);
+    }
+
+    @Test
+    public void measureAndLayout_withoutListener_reportNothing() {
+        Instrumentation.setListener(listener);
+        Instrumentation.setListener(null);
+
+        measure();
+        layout();
+
+        assertEquals(0, listener.measureCount);
+        assertEquals(0, listener.layoutCount);
+        assertEquals(0L, Instrumentation.startTime(null));
+    }
+
+    private void measure() {
+        chipLayout.measure(View.MeasureSpec.makeMeasureSpec(LAYOUT_WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+    }
+
+    private void layout() {
+        chipLayout.layout(0, 0, chipLayout.getMeasuredWidth(), chipLayout.getMeasuredHeight());
+    }
+
+    /**
+     * Sink which remembers the last reported values.
+     */
+    private static final class FakeListener extends Instrumentation.SimpleListener {
+
+        private int measureCount;
+        private int childrenMeasured;
+        private int rowCount;
+
+        private int layoutCount;
+        private int childrenLaidOut;
+
+        @Override
+        public void onChipLayoutMeasured(int childrenMeasured, int rowCount, long durationNanos) {
+            measureCount++;
+            this.childrenMeasured = childrenMeasured;
+            this.rowCount = rowCount;
+        }
+
+        @Override
+        public void onChipLayoutLaidOut(int childrenLaidOut, long durationNanos) {
+            layoutCount++;
+            this.childrenLaidOut = childrenLaidOut;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package github.com.st235.chiplayout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Search of the views to keep in place done by {@code ChipLayout#setItems}.
+ */
+@State(Scope.Thread)
+public class ChipDiffBenchmark {
+
+    /**
+     * How new positions of the kept items are arranged.
+     */
+    public enum Change {
+        /**
+         * Every third item is filtered out, the rest keeps its order, like search-as-you-type.
+         */
+        FILTER,
+        /**
+         * A single item is moved from the end to the beginning.
+         */
+        MOVE,
+        /**
+         * Items are randomly shuffled, the worst case for the subsequence search.
+         */
+        SHUFFLE
+    }
+
+    @Param({"10", "100", "1000", "10000"})
+    public int itemCount;
+
+    @Param({"FILTER", "MOVE", "SHUFFLE"})
+    public Change change;
+
+    private int[] positions;
+    private boolean[] isStable;
+    private int keptCount;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        positions = new int[itemCount];
+        isStable = new boolean[itemCount];
+
+        switch (change) {
+            case FILTER:
+                for (int i = 0; i < itemCount; i++) {
+                    if (i % 3 != 2) {
+                        positions[keptCount] = keptCount;
+                        keptCount++;
+                    }
+                }
+                break;
+            case MOVE:
+                keptCount = itemCount;
+                for (int i = 0; i < itemCount; i++) {
+                    positions[i] = i + 1;
+                }
+                positions[itemCount - 1] = 0;
+                break;
+            case SHUFFLE:
+            default:
+                keptCount = itemCount;
+                for (int i = 0; i < itemCount; i++) {
+                    positions[i] = i;
+                }
+
+                final Random random = new Random(42);
+                for (int i = itemCount - 1; i > 0; i--) {
+                    final int j = random.nextInt(i + 1);
+                    final int swap = positions[i];
+                    positions[i] = positions[j];
+                    positions[j] = swap;
+                }
+                break;
+        }
+    }
+
+    @Benchmark
+    public int markLongestIncreasing() {
+        return ChipDiff.markLongestIncreasing(positions, keptCount, isStable);
+    }
+}
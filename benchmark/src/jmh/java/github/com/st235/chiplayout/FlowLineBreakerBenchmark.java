@@ -0,0 +1,100 @@
+package github.com.st235.chiplayout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Line breaking done by {@code ChipLayout} during every measure pass.
+ *
+ * Chips sizes are generated to look like tags of a chip cloud,
+ * widths are the usual phone, tablet and large screen content widths in pixels.
+ */
+@State(Scope.Thread)
+public class FlowLineBreakerBenchmark {
+
+    private static final int MIN_CHIP_WIDTH = 60;
+    private static final int MAX_CHIP_WIDTH = 320;
+    private static final int MIN_CHIP_HEIGHT = 40;
+    private static final int MAX_CHIP_HEIGHT = 56;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int itemCount;
+
+    @Param({"360", "1080", "2160"})
+    public int maxWidth;
+
+    private final FlowLineBreaker lineBreaker = new FlowLineBreaker();
+
+    /**
+     * Balanced rows are never reused by incremental passes, so they are kept apart.
+     */
+    private final FlowLineBreaker balancedLineBreaker = new FlowLineBreaker();
+
+    private int[] widths;
+    private int[] heights;
+    private int changedItem;
+    private int originalWidth;
+    private boolean isChanged;
+    private int y;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(42);
+        widths = new int[itemCount];
+        heights = new int[itemCount];
+
+        for (int i = 0; i < itemCount; i++) {
+            widths[i] = MIN_CHIP_WIDTH + random.nextInt(MAX_CHIP_WIDTH - MIN_CHIP_WIDTH);
+            heights[i] = MIN_CHIP_HEIGHT + random.nextInt(MAX_CHIP_HEIGHT - MIN_CHIP_HEIGHT);
+        }
+
+        changedItem = itemCount / 2;
+        originalWidth = widths[changedItem];
+        lineBreaker.breakLines(widths, heights, itemCount, maxWidth);
+    }
+
+    /**
+     * Full pass, happens when layout width changes or all children are replaced.
+     */
+    @Benchmark
+    public int breakAll() {
+        lineBreaker.breakLines(widths, heights, itemCount, maxWidth);
+        return lineBreaker.getRowCount();
+    }
+
+    /**
+     * Full pass of the balanced wrapping, compare with {@link #breakAll()}.
+     */
+    @Benchmark
+    public int breakAllBalanced() {
+        balancedLineBreaker.breakLinesBalanced(widths, heights, itemCount, maxWidth);
+        return balancedLineBreaker.getRowCount();
+    }
+
+    /**
+     * Incremental pass after a single chip in the middle has changed its width,
+     * for example when its text has been rebound.
+     */
+    @Benchmark
+    public int breakAfterSingleChange() {
+        isChanged = !isChanged;
+        widths[changedItem] = isChanged ? MAX_CHIP_WIDTH : originalWidth;
+        lineBreaker.breakLines(widths, heights, itemCount, maxWidth, changedItem, changedItem + 1);
+        return lineBreaker.getRowCount();
+    }
+
+    /**
+     * Row lookup used by hit testing and culling of the visible rows.
+     */
+    @Benchmark
+    public int findRowAt() {
+        y = (y + 97) % (lineBreaker.getHeight() + 1);
+        return lineBreaker.findRowAt(y);
+    }
+}